@@ -0,0 +1,180 @@
+package nachos.filesys;
+
+import nachos.machine.*;
+
+/**
+ * The in-memory handle on an inode of a <tt>NachosFileSystem</tt>. The inode
+ * itself stays in the inode table on disk and is read and written through the
+ * sector cache, so a handle holds no copy of it that could go stale.
+ *
+ * <p>
+ * An on-disk inode is <tt>InodeSize</tt> bytes: a use flag, the file length,
+ * <tt>NumDirect</tt> direct sector numbers, one singly indirect and one
+ * doubly indirect sector number. Sector number 0 (the superblock) means "no
+ * sector".
+ */
+class Inode {
+    /**
+     * Allocate a handle on inode number <i>number</i>.
+     */
+    Inode(NachosFileSystem fileSystem, int number) {
+	this.fileSystem = fileSystem;
+	this.cache = fileSystem.getCache();
+	this.number = number;
+
+	sector = fileSystem.getInodeSector(number);
+	offset = (number % InodesPerSector) * InodeSize;
+    }
+
+    /** Return the inode number. */
+    int getNumber() {
+	return number;
+    }
+
+    /** Return the length of the file in bytes. */
+    int getLength() {
+	return cache.readInt(sector, offset + lengthOffset);
+    }
+
+    void setLength(int length) {
+	cache.writeInt(sector, offset + lengthOffset, length);
+    }
+
+    /** Mark this inode in use, with an empty file. */
+    void initialize() {
+	cache.writeInt(sector, offset + flagsOffset, 1);
+	setLength(0);
+	for (int i=0; i<NumDirect+2; i++)
+	    cache.writeInt(sector, offset + directOffset + i*4, 0);
+    }
+
+    /**
+     * Return the disk sector holding block <i>block</i> of the file. If the
+     * block has no sector yet, allocates one (and any indirect sectors needed
+     * to reach it) if <i>allocate</i> is true, placing it right after the
+     * previous block if possible.
+     *
+     * @return	the sector, or -1 if there is none and it was not, or could
+     *		not be, allocated.
+     */
+    int getSector(int block, boolean allocate) {
+	Lib.assertTrue(block >= 0);
+
+	if (block < NumDirect)
+	    return getEntry(sector, offset + directOffset + block*4, block,
+			    allocate);
+	block -= NumDirect;
+
+	if (block < PointersPerSector) {
+	    int indirect = getEntry(sector, offset + indirectOffset, -1,
+				    allocate);
+	    if (indirect < 0)
+		return -1;
+	    return getEntry(indirect, block*4, block + NumDirect, allocate);
+	}
+	block -= PointersPerSector;
+
+	if (block < PointersPerSector*PointersPerSector) {
+	    int doubly = getEntry(sector, offset + doublyOffset, -1, allocate);
+	    if (doubly < 0)
+		return -1;
+	    int indirect = getEntry(doubly, (block / PointersPerSector)*4, -1,
+				    allocate);
+	    if (indirect < 0)
+		return -1;
+	    return getEntry(indirect, (block % PointersPerSector)*4,
+			    block + NumDirect + PointersPerSector, allocate);
+	}
+
+	return -1;
+    }
+
+    /**
+     * Return the sector number stored at <i>entryOffset</i> of
+     * <i>entrySector</i>, allocating and zeroing a sector for it if it is
+     * empty and <i>allocate</i> is true. <i>block</i> is the file block the
+     * sector will hold, or -1 for an indirect sector.
+     */
+    private int getEntry(int entrySector, int entryOffset, int block,
+			 boolean allocate) {
+	int s = cache.readInt(entrySector, entryOffset);
+	if (s != 0)
+	    return s;
+	if (!allocate)
+	    return -1;
+
+	int goal = -1;
+	if (block > 0)
+	    goal = getSector(block-1, false);
+
+	s = fileSystem.allocateSector(goal < 0 ? -1 : goal+1);
+	if (s < 0)
+	    return -1;
+
+	cache.zero(s);
+	cache.writeInt(entrySector, entryOffset, s);
+	return s;
+    }
+
+    /**
+     * Free every sector of the file and set its length to 0.
+     */
+    void truncate() {
+	for (int i=0; i<NumDirect; i++)
+	    freeEntry(sector, offset + directOffset + i*4, 0);
+	freeEntry(sector, offset + indirectOffset, 1);
+	freeEntry(sector, offset + doublyOffset, 2);
+	setLength(0);
+    }
+
+    /** Free this inode and everything it points to. */
+    void free() {
+	truncate();
+	cache.writeInt(sector, offset + flagsOffset, 0);
+    }
+
+    /**
+     * Free the sector stored at <i>entryOffset</i> of <i>entrySector</i>,
+     * which has <i>levels</i> levels of indirection below it, and clear the
+     * entry.
+     */
+    private void freeEntry(int entrySector, int entryOffset, int levels) {
+	int s = cache.readInt(entrySector, entryOffset);
+	if (s == 0)
+	    return;
+
+	if (levels > 0) {
+	    for (int i=0; i<PointersPerSector; i++)
+		freeEntry(s, i*4, levels-1);
+	}
+
+	cache.writeInt(entrySector, entryOffset, 0);
+	fileSystem.freeSector(s);
+    }
+
+    /** The number of bytes in an on-disk inode. */
+    static final int InodeSize = 64;
+    static final int InodesPerSector = Disk.SectorSize / InodeSize;
+    static final int PointersPerSector = Disk.SectorSize / 4;
+    static final int NumDirect = 12;
+    /** The largest number of blocks a file can have. */
+    static final int MaxBlocks =
+	NumDirect + PointersPerSector + PointersPerSector*PointersPerSector;
+
+    private static final int flagsOffset = 0;
+    private static final int lengthOffset = 4;
+    private static final int directOffset = 8;
+    private static final int indirectOffset = directOffset + NumDirect*4;
+    private static final int doublyOffset = indirectOffset + 4;
+
+    private NachosFileSystem fileSystem;
+    private SectorCache cache;
+    private int number;
+    /** Where the on-disk inode is. */
+    private int sector, offset;
+
+    /** The number of open files using this inode. */
+    int openCount = 0;
+    /** Whether the file was removed while open. */
+    boolean removed = false;
+}
@@ -0,0 +1,682 @@
+package nachos.filesys;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.HashMap;
+
+/**
+ * A file system stored on the simulated disk, with a single flat directory.
+ *
+ * <p>
+ * The disk is laid out as follows:
+ *
+ * <ul>
+ * <li>Sector 0 is the superblock, recording the sizes of the other areas.
+ * <li>A bitmap of free sectors, one bit per sector.
+ * <li>The inode table (see <tt>Inode</tt>).
+ * <li>The directory, an open-addressed hash table of fixed-size entries
+ * keyed by file name, so that looking a name up usually touches a single
+ * sector.
+ * <li>File data and indirect sectors.
+ * </ul>
+ *
+ * <p>
+ * All disk traffic goes through a <tt>SectorCache</tt>. Sequential reads read
+ * ahead up to <tt>NachosFileSystem.readAhead</tt> sectors with a single disk
+ * request, and the allocator places each block of a file right after the
+ * previous one when it can, so that read-ahead finds long runs. Dirty sectors
+ * are written back when a file is closed.
+ *
+ * <p>
+ * To use this file system, set <tt>Machine.disk</tt> to true and
+ * <tt>ThreadedKernel.fileSystem</tt> to
+ * <tt>nachos.filesys.NachosFileSystem</tt>. The disk is formatted the first
+ * time it is used, or every time if <tt>NachosFileSystem.format</tt> is true.
+ * The files named in the comma-separated <tt>NachosFileSystem.import</tt>
+ * list are then copied in from the stub file system, so that user programs
+ * can be loaded.
+ */
+public class NachosFileSystem implements FileSystem {
+    /**
+     * Allocate a new file system on <tt>Machine.disk()</tt>. The disk is not
+     * touched until the file system is first used.
+     */
+    public NachosFileSystem() {
+	disk = Machine.disk();
+	Lib.assertTrue(disk != null, "NachosFileSystem requires Machine.disk");
+
+	cache = new SectorCache(disk,
+				Config.getInteger("NachosFileSystem.cacheSectors",
+						  64));
+	readAhead = Config.getInteger("NachosFileSystem.readAhead", 8);
+	Lib.assertTrue(readAhead > 0);
+    }
+
+    public OpenFile open(String name, boolean create) {
+	byte[] key = checkName(name);
+	if (key == null)
+	    return null;
+
+	lock.acquire();
+	mount();
+
+	Inode inode = null;
+	int slot = lookup(key);
+	if (slot >= 0) {
+	    inode = getInode(getDirectoryInode(slot));
+	}
+	else if (create) {
+	    int number = allocateInode();
+	    if (number >= 0 && insert(key, number)) {
+		inode = getInode(number);
+		inode.initialize();
+	    }
+	    else if (number >= 0) {
+		inodeUsed[number] = false;
+	    }
+	}
+
+	OpenFile file = null;
+	if (inode != null) {
+	    inode.openCount++;
+	    file = new NachosOpenFile(inode, name);
+	}
+
+	lock.release();
+	return file;
+    }
+
+    public boolean remove(String name) {
+	byte[] key = checkName(name);
+	if (key == null)
+	    return false;
+
+	lock.acquire();
+	mount();
+
+	int slot = lookup(key);
+	if (slot >= 0) {
+	    int number = getDirectoryInode(slot);
+	    setDirectoryEntry(slot, null, deletedEntry);
+
+	    Inode inode = openInodes.get(number);
+	    if (inode != null)
+		inode.removed = true;
+	    else
+		freeInode(number);
+
+	    cache.flush();
+	}
+
+	lock.release();
+	return slot >= 0;
+    }
+
+    /**
+     * Return the number of free sectors on the disk.
+     *
+     * @return	the number of free sectors.
+     */
+    public int getNumFreeSectors() {
+	lock.acquire();
+	mount();
+	int free = numFreeSectors;
+	lock.release();
+	return free;
+    }
+
+    SectorCache getCache() {
+	return cache;
+    }
+
+    /** Return the sector of the inode table holding inode <i>number</i>. */
+    int getInodeSector(int number) {
+	return inodeStart + number / Inode.InodesPerSector;
+    }
+
+    /**
+     * Allocate a free sector, the first one at or after <i>goal</i> if
+     * <i>goal</i> is not -1.
+     *
+     * @return	the sector allocated, or -1 if the disk is full.
+     */
+    int allocateSector(int goal) {
+	if (numFreeSectors == 0)
+	    return -1;
+
+	if (goal < 0 || goal >= numSectors)
+	    goal = nextFree;
+
+	for (int i=0; i<numSectors; i++) {
+	    int s = (goal + i) % numSectors;
+	    if (!isSectorUsed(s)) {
+		setSectorUsed(s, true);
+		nextFree = s + 1;
+		return s;
+	    }
+	}
+
+	Lib.assertNotReached();
+	return -1;
+    }
+
+    void freeSector(int sector) {
+	Lib.assertTrue(sector >= dataStart && isSectorUsed(sector));
+
+	setSectorUsed(sector, false);
+	cache.discard(sector);
+    }
+
+    /**
+     * Read the superblock, formatting the disk first if it has never been
+     * formatted, and import files from the stub file system. Does nothing
+     * after the first call.
+     */
+    private void mount() {
+	if (mounted)
+	    return;
+	mounted = true;
+
+	if (cache.readInt(0, 0) != magic ||
+	    cache.readInt(0, 4) != disk.getNumSectors() ||
+	    Config.getBoolean("NachosFileSystem.format", false))
+	    format();
+
+	numSectors = cache.readInt(0, 4);
+	numInodes = cache.readInt(0, 8);
+	directorySlots = cache.readInt(0, 12);
+	layout();
+
+	bitmap = new int[Lib.divRoundUp(numSectors, 32)];
+	numFreeSectors = 0;
+	for (int i=0; i<bitmap.length; i++) {
+	    bitmap[i] = cache.readInt(bitmapStart + i/wordsPerSector,
+				      (i%wordsPerSector)*4);
+	}
+	for (int s=0; s<numSectors; s++) {
+	    if (!isSectorUsed(s))
+		numFreeSectors++;
+	}
+	nextFree = dataStart;
+
+	inodeUsed = new boolean[numInodes];
+	for (int i=0; i<numInodes; i++) {
+	    inodeUsed[i] = cache.readInt(getInodeSector(i),
+					 (i%Inode.InodesPerSector) *
+					 Inode.InodeSize) != 0;
+	}
+
+	String imports = Config.getString("NachosFileSystem.import", "");
+	String[] names = imports.split(",");
+	for (int i=0; i<names.length; i++) {
+	    if (names[i].trim().length() > 0)
+		importFile(names[i].trim());
+	}
+
+	cache.flush();
+    }
+
+    /**
+     * Write an empty file system to the disk.
+     */
+    private void format() {
+	System.out.println("formatting Nachos file system");
+
+	numSectors = disk.getNumSectors();
+	numInodes = Config.getInteger("NachosFileSystem.numInodes", 128);
+	directorySlots = 2*numInodes;
+	layout();
+	Lib.assertTrue(dataStart < numSectors);
+
+	for (int s=0; s<dataStart; s++)
+	    cache.zero(s);
+
+	cache.writeInt(0, 0, magic);
+	cache.writeInt(0, 4, numSectors);
+	cache.writeInt(0, 8, numInodes);
+	cache.writeInt(0, 12, directorySlots);
+
+	// everything up to the first data sector is in use
+	for (int s=0; s<dataStart; s++) {
+	    cache.writeInt(bitmapStart + (s/32)/wordsPerSector,
+			   ((s/32)%wordsPerSector)*4,
+			   cache.readInt(bitmapStart + (s/32)/wordsPerSector,
+					 ((s/32)%wordsPerSector)*4) |
+			   (1 << (s%32)));
+	}
+
+	cache.flush();
+    }
+
+    /** Compute where each area starts from the superblock fields. */
+    private void layout() {
+	bitmapStart = 1;
+	int bitmapSectors = Lib.divRoundUp(numSectors, Disk.SectorSize*8);
+	inodeStart = bitmapStart + bitmapSectors;
+	int inodeSectors = Lib.divRoundUp(numInodes, Inode.InodesPerSector);
+	directoryStart = inodeStart + inodeSectors;
+	int directorySectors = Lib.divRoundUp(directorySlots, entriesPerSector);
+	dataStart = directoryStart + directorySectors;
+    }
+
+    private boolean isSectorUsed(int s) {
+	return (bitmap[s/32] & (1 << (s%32))) != 0;
+    }
+
+    /** Update the bitmap in memory and, through the cache, on disk. */
+    private void setSectorUsed(int s, boolean used) {
+	int word = s/32;
+	if (used) {
+	    bitmap[word] |= 1 << (s%32);
+	    numFreeSectors--;
+	}
+	else {
+	    bitmap[word] &= ~(1 << (s%32));
+	    numFreeSectors++;
+	}
+
+	cache.writeInt(bitmapStart + word/wordsPerSector,
+		       (word%wordsPerSector)*4, bitmap[word]);
+    }
+
+    private int allocateInode() {
+	for (int i=0; i<numInodes; i++) {
+	    if (!inodeUsed[i]) {
+		inodeUsed[i] = true;
+		return i;
+	    }
+	}
+	return -1;
+    }
+
+    private void freeInode(int number) {
+	new Inode(this, number).free();
+	inodeUsed[number] = false;
+    }
+
+    /**
+     * Return the shared handle on inode <i>number</i>, creating it if no open
+     * file is using the inode yet.
+     */
+    private Inode getInode(int number) {
+	Inode inode = openInodes.get(number);
+	if (inode == null) {
+	    inode = new Inode(this, number);
+	    openInodes.put(number, inode);
+	}
+	return inode;
+    }
+
+    /**
+     * Close <i>inode</i> on behalf of one open file, freeing it if it was the
+     * last one and the file has been removed.
+     */
+    private void release(Inode inode) {
+	if (--inode.openCount > 0)
+	    return;
+
+	openInodes.remove(inode.getNumber());
+	if (inode.removed) {
+	    inode.free();
+	    inodeUsed[inode.getNumber()] = false;
+	}
+    }
+
+    /**
+     * Return the directory slot holding <i>key</i>, or -1 if there is none.
+     * Probes linearly from the slot the name hashes to, skipping deleted
+     * entries, until an empty slot is reached.
+     */
+    private int lookup(byte[] key) {
+	int slot = hash(key);
+	for (int i=0; i<directorySlots; i++) {
+	    int number = getDirectoryEntry(slot);
+	    if (number == emptyEntry)
+		return -1;
+	    if (number != deletedEntry && nameMatches(slot, key))
+		return slot;
+	    slot = (slot + 1) % directorySlots;
+	}
+	return -1;
+    }
+
+    /**
+     * Add <i>key</i>, which must not be in the directory, for inode
+     * <i>number</i>, reusing the first deleted or empty slot it probes.
+     */
+    private boolean insert(byte[] key, int number) {
+	int slot = hash(key);
+	for (int i=0; i<directorySlots; i++) {
+	    int entry = getDirectoryEntry(slot);
+	    if (entry == emptyEntry || entry == deletedEntry) {
+		setDirectoryEntry(slot, key, number+1);
+		return true;
+	    }
+	    slot = (slot + 1) % directorySlots;
+	}
+	return false;
+    }
+
+    private int hash(byte[] key) {
+	int h = 0;
+	for (int i=0; i<key.length; i++)
+	    h = 31*h + key[i];
+	return (h & 0x7FFFFFFF) % directorySlots;
+    }
+
+    private int getDirectoryEntry(int slot) {
+	return cache.readInt(directoryStart + slot/entriesPerSector,
+			     (slot%entriesPerSector)*entrySize + maxNameLength);
+    }
+
+    private int getDirectoryInode(int slot) {
+	return getDirectoryEntry(slot) - 1;
+    }
+
+    private boolean nameMatches(int slot, byte[] key) {
+	cache.read(directoryStart + slot/entriesPerSector,
+		   (slot%entriesPerSector)*entrySize, nameBuffer, 0,
+		   maxNameLength);
+
+	for (int i=0; i<maxNameLength; i++) {
+	    byte b = (i < key.length) ? key[i] : 0;
+	    if (nameBuffer[i] != b)
+		return false;
+	}
+	return true;
+    }
+
+    private void setDirectoryEntry(int slot, byte[] key, int entry) {
+	int sector = directoryStart + slot/entriesPerSector;
+	int offset = (slot%entriesPerSector)*entrySize;
+
+	if (key != null) {
+	    java.util.Arrays.fill(nameBuffer, (byte) 0);
+	    System.arraycopy(key, 0, nameBuffer, 0, key.length);
+	    cache.write(sector, offset, nameBuffer, 0, maxNameLength);
+	}
+	cache.writeInt(sector, offset + maxNameLength, entry);
+    }
+
+    /**
+     * Return the bytes of <i>name</i>, or <tt>null</tt> if it is not a valid
+     * file name: non-empty, at most <tt>maxNameLength</tt> characters, and
+     * printable ASCII other than '/'.
+     */
+    private static byte[] checkName(String name) {
+	if (name == null || name.length() == 0 ||
+	    name.length() > maxNameLength)
+	    return null;
+
+	byte[] key = new byte[name.length()];
+	for (int i=0; i<key.length; i++) {
+	    char c = name.charAt(i);
+	    if (c <= ' ' || c >= 0x7F || c == '/')
+		return null;
+	    key[i] = (byte) c;
+	}
+	return key;
+    }
+
+    /**
+     * Copy <i>name</i> from the stub file system, replacing any file of that
+     * name.
+     */
+    private void importFile(String name) {
+	FileSystem stub = Machine.stubFileSystem();
+	OpenFile source = (stub == null) ? null : stub.open(name, false);
+	if (source == null) {
+	    System.out.println("cannot import " + name);
+	    return;
+	}
+
+	byte[] key = checkName(name);
+	Lib.assertTrue(key != null);
+
+	int slot = lookup(key);
+	Inode inode;
+	if (slot >= 0) {
+	    inode = new Inode(this, getDirectoryInode(slot));
+	    inode.truncate();
+	}
+	else {
+	    int number = allocateInode();
+	    Lib.assertTrue(number >= 0 && insert(key, number),
+			   "no room to import " + name);
+	    inode = new Inode(this, number);
+	    inode.initialize();
+	}
+
+	byte[] buf = new byte[Disk.SectorSize * 8];
+	int pos = 0, amount;
+	while ((amount = source.read(buf, 0, buf.length)) > 0) {
+	    Lib.assertTrue(writeInode(inode, pos, buf, 0, amount) == amount,
+			   "no room to import " + name);
+	    pos += amount;
+	}
+	source.close();
+    }
+
+    /**
+     * Read from <i>inode</i>, reading ahead if <i>sequential</i> is true.
+     * The caller must hold the file system lock.
+     */
+    private int readInode(Inode inode, int pos, byte[] buf, int offset,
+			  int length, boolean sequential) {
+	int fileLength = inode.getLength();
+	if (pos >= fileLength)
+	    return 0;
+	length = Math.min(length, fileLength - pos);
+
+	int lastBlock = (fileLength - 1) / Disk.SectorSize;
+	int done = 0;
+	while (done < length) {
+	    int block = (pos + done) / Disk.SectorSize;
+	    int blockOffset = (pos + done) % Disk.SectorSize;
+	    int amount = Math.min(length - done,
+				  Disk.SectorSize - blockOffset);
+
+	    int sector = inode.getSector(block, false);
+	    if (sector < 0) {
+		java.util.Arrays.fill(buf, offset + done,
+				      offset + done + amount, (byte) 0);
+	    }
+	    else {
+		if (sequential) {
+		    // read ahead as far as the file is contiguous on disk
+		    int run = 1;
+		    while (run < readAhead && block + run <= lastBlock &&
+			   inode.getSector(block + run, false) == sector + run)
+			run++;
+		    cache.prefetch(sector, run);
+		}
+		cache.read(sector, blockOffset, buf, offset + done, amount);
+	    }
+
+	    done += amount;
+	}
+
+	return done;
+    }
+
+    /**
+     * Write to <i>inode</i>, extending the file as needed. The caller must
+     * hold the file system lock.
+     *
+     * @return	the number of bytes written, which is less than
+     *		<i>length</i> only if the disk or the file is full.
+     */
+    private int writeInode(Inode inode, int pos, byte[] buf, int offset,
+			   int length) {
+	int done = 0;
+	while (done < length) {
+	    int block = (pos + done) / Disk.SectorSize;
+	    int blockOffset = (pos + done) % Disk.SectorSize;
+	    int amount = Math.min(length - done,
+				  Disk.SectorSize - blockOffset);
+
+	    if (block >= Inode.MaxBlocks)
+		break;
+	    int sector = inode.getSector(block, true);
+	    if (sector < 0)
+		break;
+
+	    cache.write(sector, blockOffset, buf, offset + done, amount);
+	    done += amount;
+	}
+
+	if (pos + done > inode.getLength())
+	    inode.setLength(pos + done);
+
+	return done;
+    }
+
+    private class NachosOpenFile extends OpenFileWithPosition {
+	NachosOpenFile(Inode inode, String name) {
+	    super(NachosFileSystem.this, name);
+
+	    this.inode = inode;
+	}
+
+	public int read(int pos, byte[] buf, int offset, int length) {
+	    if (pos < 0 || length < 0 || offset < 0 ||
+		offset + length > buf.length)
+		return -1;
+
+	    lock.acquire();
+
+	    int amount = -1;
+	    if (inode != null) {
+		boolean sequential = (pos == nextSequentialPos);
+		amount = readInode(inode, pos, buf, offset, length,
+				   sequential);
+		nextSequentialPos = pos + amount;
+	    }
+
+	    lock.release();
+	    return amount;
+	}
+
+	public int write(int pos, byte[] buf, int offset, int length) {
+	    if (pos < 0 || length < 0 || offset < 0 ||
+		offset + length > buf.length)
+		return -1;
+
+	    lock.acquire();
+
+	    int amount = -1;
+	    if (inode != null) {
+		amount = writeInode(inode, pos, buf, offset, length);
+		if (amount == 0 && length > 0)
+		    amount = -1;
+	    }
+
+	    lock.release();
+	    return amount;
+	}
+
+	public int length() {
+	    lock.acquire();
+	    int length = (inode == null) ? -1 : inode.getLength();
+	    lock.release();
+	    return length;
+	}
+
+	public void close() {
+	    lock.acquire();
+
+	    if (inode != null) {
+		NachosFileSystem.this.release(inode);
+		inode = null;
+		cache.flush();
+	    }
+
+	    lock.release();
+	}
+
+	private Inode inode;
+	/** Where a sequential reader would read next. */
+	private int nextSequentialPos = 0;
+    }
+
+    /**
+     * Tests whether this module is working. Writes a file spanning direct and
+     * indirect blocks, reads it back, and checks that removing files gives
+     * back their sectors, even when they are removed while open.
+     */
+    public void selfTest() {
+	final String name = "fs.selftest";
+	remove(name);
+	int freeBefore = getNumFreeSectors();
+	int requestsBefore = disk.getNumRequests();
+
+	int length = (Inode.NumDirect + 20) * Disk.SectorSize + 100;
+	byte[] data = new byte[length];
+	for (int i=0; i<length; i++)
+	    data[i] = (byte) (i*7 + i/Disk.SectorSize);
+
+	OpenFile file = open(name, true);
+	Lib.assertTrue(file != null);
+	for (int pos=0; pos<length; pos+=1000)
+	    Lib.assertTrue(file.write(data, pos, Math.min(1000, length-pos)) ==
+			   Math.min(1000, length-pos));
+	Lib.assertTrue(file.length() == length);
+	file.close();
+
+	Lib.assertTrue(open("fs.nonexistent", false) == null);
+
+	file = open(name, false);
+	byte[] check = new byte[length];
+	int pos = 0, amount;
+	while ((amount = file.read(check, pos, Math.min(300, length-pos))) > 0)
+	    pos += amount;
+	Lib.assertTrue(pos == length);
+	for (int i=0; i<length; i++)
+	    Lib.assertTrue(check[i] == data[i]);
+
+	// the data survives removal until the last close
+	Lib.assertTrue(remove(name));
+	Lib.assertTrue(open(name, false) == null);
+	Lib.assertTrue(file.read(0, check, 0, 10) == 10 && check[9] == data[9]);
+	file.close();
+	Lib.assertTrue(getNumFreeSectors() == freeBefore);
+
+	System.out.println("file system test: " +
+			   (disk.getNumRequests() - requestsBefore) +
+			   " disk requests, cache hits " + cache.getHits() +
+			   ", misses " + cache.getMisses() +
+			   ", read ahead " + cache.getReadAhead());
+    }
+
+    private static final int magic = 0x4E414653;	// "NAFS"
+
+    /** The longest file name; also the size of the name in an entry. */
+    private static final int maxNameLength = 28;
+    private static final int entrySize = maxNameLength + 4;
+    private static final int entriesPerSector = Disk.SectorSize / entrySize;
+    private static final int wordsPerSector = Disk.SectorSize / 4;
+
+    /** Directory entry values, other than an inode number plus 1. */
+    private static final int emptyEntry = 0, deletedEntry = -1;
+
+    private Disk disk;
+    private SectorCache cache;
+    private int readAhead;
+    private Lock lock = new Lock();
+
+    private boolean mounted = false;
+    private int numSectors, numInodes, directorySlots;
+    private int bitmapStart, inodeStart, directoryStart, dataStart;
+
+    /** The free-sector bitmap, also kept on disk. */
+    private int[] bitmap;
+    private int numFreeSectors;
+    /** Where to start looking for a free sector when there is no goal. */
+    private int nextFree;
+    private boolean[] inodeUsed;
+
+    /** Handles on the inodes of all open files, by inode number. */
+    private HashMap<Integer, Inode> openInodes = new HashMap<Integer, Inode>();
+    private byte[] nameBuffer = new byte[maxNameLength];
+}
@@ -0,0 +1,301 @@
+package nachos.filesys;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.HashMap;
+
+/**
+ * A write-back cache of disk sectors, replaced in least-recently-used order.
+ *
+ * <p>
+ * Reads that hit the cache cost neither a host I/O call nor simulated disk
+ * time. Writes only mark a sector dirty; dirty sectors go back to the disk
+ * when they are evicted or when the cache is flushed, and a flush writes
+ * each run of consecutive dirty sectors with a single request.
+ * <tt>prefetch()</tt> reads a run of consecutive sectors with a single
+ * request too, which is how the file system reads ahead.
+ *
+ * <p>
+ * Every disk request makes the calling thread wait as long as the disk says
+ * the request takes. Before the alarm exists (while the kernel is still
+ * initializing) requests complete instantly.
+ *
+ * <p>
+ * The cache does no locking of its own; the file system serializes access
+ * to it.
+ */
+public class SectorCache {
+    /**
+     * Allocate a new sector cache.
+     *
+     * @param	disk		the disk to cache.
+     * @param	numBuffers	the number of sectors the cache can hold.
+     */
+    public SectorCache(Disk disk, int numBuffers) {
+	Lib.assertTrue(numBuffers > 0);
+
+	this.disk = disk;
+	this.numBuffers = numBuffers;
+
+	lru.prev = lru.next = lru;
+    }
+
+    /**
+     * Copy <i>length</i> bytes, starting at byte <i>offset</i> of
+     * <i>sector</i>, into <i>data</i>.
+     */
+    public void read(int sector, int offset, byte[] data, int dataOffset,
+		     int length) {
+	Lib.assertTrue(offset >= 0 && length >= 0 &&
+		       offset + length <= Disk.SectorSize);
+
+	Buffer buffer = getBuffer(sector, true);
+	System.arraycopy(buffer.data, offset, data, dataOffset, length);
+    }
+
+    /**
+     * Copy <i>length</i> bytes from <i>data</i> into <i>sector</i>, starting
+     * at byte <i>offset</i>. The sector is not read from the disk first if it
+     * is being overwritten completely.
+     */
+    public void write(int sector, int offset, byte[] data, int dataOffset,
+		      int length) {
+	Lib.assertTrue(offset >= 0 && length >= 0 &&
+		       offset + length <= Disk.SectorSize);
+
+	Buffer buffer = getBuffer(sector, length < Disk.SectorSize);
+	System.arraycopy(data, dataOffset, buffer.data, offset, length);
+	buffer.dirty = true;
+    }
+
+    /**
+     * Return the little-endian integer at byte <i>offset</i> of
+     * <i>sector</i>.
+     */
+    public int readInt(int sector, int offset) {
+	return Lib.bytesToInt(getBuffer(sector, true).data, offset);
+    }
+
+    /**
+     * Store <i>value</i> as a little-endian integer at byte <i>offset</i> of
+     * <i>sector</i>.
+     */
+    public void writeInt(int sector, int offset, int value) {
+	Buffer buffer = getBuffer(sector, true);
+	Lib.bytesFromInt(buffer.data, offset, value);
+	buffer.dirty = true;
+    }
+
+    /**
+     * Fill <i>sector</i> with zeros without reading it from the disk.
+     */
+    public void zero(int sector) {
+	Buffer buffer = getBuffer(sector, false);
+	java.util.Arrays.fill(buffer.data, (byte) 0);
+	buffer.dirty = true;
+    }
+
+    /**
+     * Forget <i>sector</i> without writing it back. Used when the sector is
+     * freed, so that its contents are never written.
+     */
+    public void discard(int sector) {
+	Buffer buffer = buffers.remove(sector);
+	if (buffer != null) {
+	    unlink(buffer);
+	    buffer.dirty = false;
+	    freeBuffer = buffer;
+	}
+    }
+
+    /**
+     * Bring the sectors <i>sector</i> through <i>sector+count-1</i> into the
+     * cache. The first sector is the one actually needed; the rest are read
+     * ahead, with the same request, up to the first one already cached. Reads
+     * ahead at most half the cache, so that a long run cannot flush out
+     * everything else.
+     */
+    public void prefetch(int sector, int count) {
+	if (buffers.containsKey(sector))
+	    return;
+
+	count = Math.min(count, Math.max(1, numBuffers/2));
+	int run = 1;
+	while (run < count && !buffers.containsKey(sector + run))
+	    run++;
+
+	byte[] data = transferBuffer(run);
+	diskRead(sector, run, data);
+
+	// insert in reverse, so the sector needed now is most recently used
+	for (int i=run-1; i>=0; i--) {
+	    Buffer buffer = allocate(sector + i);
+	    System.arraycopy(data, i*Disk.SectorSize, buffer.data, 0,
+			     Disk.SectorSize);
+	}
+
+	misses++;
+	readAhead += run-1;
+    }
+
+    /**
+     * Write every dirty sector back to the disk, one request per run of
+     * consecutive dirty sectors.
+     */
+    public void flush() {
+	int numDirty = 0;
+	for (Buffer b=lru.next; b!=lru; b=b.next) {
+	    if (b.dirty)
+		numDirty++;
+	}
+	if (numDirty == 0)
+	    return;
+
+	int[] dirty = new int[numDirty];
+	int n = 0;
+	for (Buffer b=lru.next; b!=lru; b=b.next) {
+	    if (b.dirty)
+		dirty[n++] = b.sector;
+	}
+	java.util.Arrays.sort(dirty);
+
+	for (int first=0; first<numDirty; ) {
+	    int run = 1;
+	    while (first+run < numDirty &&
+		   dirty[first+run] == dirty[first] + run)
+		run++;
+
+	    byte[] data = transferBuffer(run);
+	    for (int i=0; i<run; i++) {
+		Buffer buffer = buffers.get(dirty[first+i]);
+		System.arraycopy(buffer.data, 0, data, i*Disk.SectorSize,
+				 Disk.SectorSize);
+		buffer.dirty = false;
+	    }
+	    diskWrite(dirty[first], run, data);
+
+	    first += run;
+	}
+    }
+
+    /** Return the number of sector lookups satisfied from the cache. */
+    public int getHits() {
+	return hits;
+    }
+
+    /** Return the number of sector lookups that had to go to the disk. */
+    public int getMisses() {
+	return misses;
+    }
+
+    /** Return the number of sectors brought in by read-ahead. */
+    public int getReadAhead() {
+	return readAhead;
+    }
+
+    /**
+     * Return the buffer holding <i>sector</i>, making it the most recently
+     * used. If the sector is not cached, reads it from the disk if
+     * <i>fetch</i> is true; otherwise its contents are undefined.
+     */
+    private Buffer getBuffer(int sector, boolean fetch) {
+	Buffer buffer = buffers.get(sector);
+	if (buffer != null) {
+	    hits++;
+	    unlink(buffer);
+	    linkFirst(buffer);
+	    return buffer;
+	}
+
+	if (!fetch) {
+	    misses++;
+	    return allocate(sector);
+	}
+
+	prefetch(sector, 1);
+	return buffers.get(sector);
+    }
+
+    /**
+     * Take a buffer for <i>sector</i>, evicting the least recently used one
+     * if the cache is full, and make it the most recently used.
+     */
+    private Buffer allocate(int sector) {
+	Buffer buffer;
+	if (freeBuffer != null) {
+	    buffer = freeBuffer;
+	    freeBuffer = null;
+	}
+	else if (buffers.size() < numBuffers) {
+	    buffer = new Buffer();
+	}
+	else {
+	    buffer = lru.prev;
+	    if (buffer.dirty) {
+		diskWrite(buffer.sector, 1, buffer.data);
+		buffer.dirty = false;
+	    }
+	    unlink(buffer);
+	    buffers.remove(buffer.sector);
+	}
+
+	buffer.sector = sector;
+	buffers.put(sector, buffer);
+	linkFirst(buffer);
+	return buffer;
+    }
+
+    private byte[] transferBuffer(int count) {
+	if (transfer.length < count*Disk.SectorSize)
+	    transfer = new byte[count*Disk.SectorSize];
+	return transfer;
+    }
+
+    private void diskRead(int sector, int count, byte[] data) {
+	int time = disk.getAccessTime(sector, count);
+	disk.readSectors(sector, count, data, 0);
+	delay(time);
+    }
+
+    private void diskWrite(int sector, int count, byte[] data) {
+	int time = disk.getAccessTime(sector, count);
+	disk.writeSectors(sector, count, data, 0);
+	delay(time);
+    }
+
+    private void delay(int time) {
+	if (ThreadedKernel.alarm != null)
+	    ThreadedKernel.alarm.waitUntil(time);
+    }
+
+    private void unlink(Buffer buffer) {
+	buffer.prev.next = buffer.next;
+	buffer.next.prev = buffer.prev;
+    }
+
+    private void linkFirst(Buffer buffer) {
+	buffer.next = lru.next;
+	buffer.prev = lru;
+	lru.next.prev = buffer;
+	lru.next = buffer;
+    }
+
+    private static class Buffer {
+	int sector = -1;
+	boolean dirty = false;
+	byte[] data = new byte[Disk.SectorSize];
+	Buffer prev, next;
+    }
+
+    private Disk disk;
+    private int numBuffers;
+    private HashMap<Integer, Buffer> buffers = new HashMap<Integer, Buffer>();
+    /** Head of the LRU list: <tt>lru.next</tt> is the most recently used. */
+    private Buffer lru = new Buffer();
+    /** A buffer left over by <tt>discard()</tt>. */
+    private Buffer freeBuffer = null;
+    private byte[] transfer = new byte[Disk.SectorSize];
+
+    private int hits = 0, misses = 0, readAhead = 0;
+}
@@ -92,6 +92,34 @@ public class Coff {
 	}
     }
 
+    /**
+     * Load the COFF executable in the specified file, whose headers have
+     * already been read from another copy of it into <i>parsed</i>. Nothing
+     * is read from the file.
+     *
+     * @param	file	the file containing the executable, or <tt>null</tt>
+     *			to make a copy that only holds the headers.
+     * @param	parsed	a loader for an identical executable.
+     */
+    public Coff(OpenFile file, Coff parsed) {
+	this.file = file;
+
+	Coff coff = (file == null) ? null :
+	    Machine.autoGrader().createLoader(file);
+
+	if (coff != null) {
+	    this.entryPoint = coff.entryPoint;
+	    this.sections = coff.sections;
+	}
+	else {
+	    entryPoint = parsed.entryPoint;
+
+	    sections = new CoffSection[parsed.sections.length];
+	    for (int s=0; s<sections.length; s++)
+		sections[s] = new CoffSection(parsed.sections[s], file, this);
+	}
+    }
+
     /**
      * Return the number of sections in the executable.
      *
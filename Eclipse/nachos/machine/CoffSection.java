@@ -116,6 +116,31 @@ public class CoffSection {
         firstVPN = vaddr / Processor.pageSize;
     }
 
+    /**
+     * Make a copy of <i>section</i>, for another COFF object loading another
+     * copy of the same executable.
+     *
+     * @param section
+     *            the section to copy.
+     * @param file
+     *            the file containing this copy of the executable.
+     * @param coff
+     *            the COFF object to which this section belongs.
+     */
+    CoffSection(CoffSection section, OpenFile file, Coff coff) {
+        this.file = file;
+        this.coff = coff;
+
+        name = section.name;
+        executable = section.executable;
+        readOnly = section.readOnly;
+        initialized = section.initialized;
+        numPages = section.numPages;
+        firstVPN = section.firstVPN;
+        size = section.size;
+        contentOffset = section.contentOffset;
+    }
+
     /**
      * Return the COFF object used to load this executable instance.
      *
@@ -209,11 +234,6 @@ public class CoffSection {
         Arrays.fill(memory, paddr + initlen, paddr + pageSize, (byte) 0);
     }
 
-    // (TODO)
-    public void loadPagesToCompressBuf(int spn, int numPages, byte[] buf) {
-
-    }
-
     /** The COFF object to which this section belongs. */
     protected Coff coff;
     /** The COFF name of this section. */
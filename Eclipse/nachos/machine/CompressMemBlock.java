@@ -89,4 +89,7 @@ public class CompressMemBlock {
      */
     public List<Integer> vpnList = new ArrayList<Integer>();
 
+    /** Handle of this block in the <tt>PackedPageTable</tt> block registry, or -1. */
+    int handle = -1;
+
 }
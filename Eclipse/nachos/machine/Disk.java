@@ -0,0 +1,165 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import nachos.security.*;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.io.IOException;
+
+/**
+ * A simulated disk, stored in a file on the host. The disk is an array of
+ * <tt>numSectors</tt> sectors of <tt>SectorSize</tt> bytes each, and is only
+ * ever read and written a whole sector at a time.
+ *
+ * <p>
+ * A request transfers a run of consecutive sectors, and costs one seek on the
+ * host no matter how long the run is. The disk itself does not advance
+ * simulated time; <tt>getAccessTime()</tt> tells the kernel how long a
+ * request would have taken on a real disk, so it can wait that long.
+ *
+ * <p>
+ * The number of sectors is set with the <tt>Disk.numSectors</tt> key in
+ * <tt>nachos.conf</tt>, and the host file with <tt>Disk.file</tt> (relative
+ * to the test directory, unless it is an absolute path). The contents of the
+ * host file survive from one run of Nachos to the next.
+ */
+public final class Disk {
+    /**
+     * Allocate a new disk.
+     *
+     * @param	privilege      	encapsulates privileged access to the Nachos
+     *				machine.
+     * @param	directory	the directory to keep the host file in.
+     */
+    public Disk(Privilege privilege, File directory) {
+	System.out.print(" disk");
+
+	this.privilege = privilege;
+
+	numSectors = Config.getInteger("Disk.numSectors", 2048);
+	Lib.assertTrue(numSectors > 0);
+
+	String fileName = Config.getString("Disk.file", "DISK");
+	final File f = new File(fileName).isAbsolute() ?
+	    new File(fileName) : new File(directory, fileName);
+
+	privilege.doPrivileged(new Runnable() {
+		public void run() { openHostFile(f); }
+	    });
+
+	Lib.assertTrue(file != null, "cannot open disk file " + f);
+    }
+
+    private void openHostFile(File f) {
+	try {
+	    file = new RandomAccessFile(f, "rw");
+	    if (file.length() != (long) numSectors * SectorSize)
+		file.setLength((long) numSectors * SectorSize);
+	}
+	catch (IOException e) {
+	    file = null;
+	}
+    }
+
+    /**
+     * Return the number of sectors on this disk.
+     *
+     * @return	the number of sectors on this disk.
+     */
+    public int getNumSectors() {
+	return numSectors;
+    }
+
+    /**
+     * Read <i>count</i> consecutive sectors, starting with <i>sector</i>, into
+     * <i>data</i>.
+     *
+     * @param	sector	the first sector to read.
+     * @param	count	the number of sectors to read.
+     * @param	data	the buffer to read into.
+     * @param	offset	the first byte of <i>data</i> to read into.
+     */
+    public void readSectors(int sector, int count, byte[] data, int offset) {
+	checkRequest(sector, count, data, offset);
+
+	try {
+	    file.seek((long) sector * SectorSize);
+	    file.readFully(data, offset, count * SectorSize);
+	}
+	catch (IOException e) {
+	    Lib.assertNotReached("disk read failed: " + e);
+	}
+
+	privilege.stats.numDiskReads += count;
+	numRequests++;
+	headPosition = sector + count;
+    }
+
+    /**
+     * Write <i>count</i> consecutive sectors, starting with <i>sector</i>,
+     * from <i>data</i>.
+     *
+     * @param	sector	the first sector to write.
+     * @param	count	the number of sectors to write.
+     * @param	data	the buffer to write from.
+     * @param	offset	the first byte of <i>data</i> to write from.
+     */
+    public void writeSectors(int sector, int count, byte[] data, int offset) {
+	checkRequest(sector, count, data, offset);
+
+	try {
+	    file.seek((long) sector * SectorSize);
+	    file.write(data, offset, count * SectorSize);
+	}
+	catch (IOException e) {
+	    Lib.assertNotReached("disk write failed: " + e);
+	}
+
+	privilege.stats.numDiskWrites += count;
+	numRequests++;
+	headPosition = sector + count;
+    }
+
+    /**
+     * Return how long a request for <i>count</i> sectors starting at
+     * <i>sector</i> takes, given where the last request left the head. A
+     * request that starts right where the last one ended needs no seek.
+     *
+     * @param	sector	the first sector of the request.
+     * @param	count	the number of sectors in the request.
+     * @return	the simulated time the request takes.
+     */
+    public int getAccessTime(int sector, int count) {
+	int time = count * (Stats.RotationTime / SectorsPerTrack);
+	if (sector != headPosition)
+	    time += Stats.SeekTime + Stats.RotationTime/2;
+	return time;
+    }
+
+    /**
+     * Return the number of requests (host I/O calls) made so far.
+     *
+     * @return	the number of read and write requests made.
+     */
+    public int getNumRequests() {
+	return numRequests;
+    }
+
+    private void checkRequest(int sector, int count, byte[] data, int offset) {
+	Lib.assertTrue(sector >= 0 && count > 0 && sector + count <= numSectors);
+	Lib.assertTrue(offset >= 0 && offset + count*SectorSize <= data.length);
+    }
+
+    /** The number of bytes in a sector. */
+    public static final int SectorSize = 512;
+    /** The number of sectors that pass under the head in one rotation. */
+    public static final int SectorsPerTrack = 32;
+
+    private Privilege privilege;
+    private RandomAccessFile file = null;
+    private int numSectors;
+    private int headPosition = 0;
+    private int numRequests = 0;
+}
@@ -4,9 +4,7 @@ package nachos.machine;
 
 import nachos.security.*;
 
-import java.util.TreeSet;
-import java.util.Iterator;
-import java.util.SortedSet;
+import java.util.Arrays;
 
 /**
  * The <tt>Interrupt</tt> class emulates low-level interrupt hardware. The
@@ -38,6 +36,13 @@ import java.util.SortedSet;
  * simulation (even with randomized time slices), but it wouldn't work on real
  * hardware. But even though Nachos can't always detect when your program
  * would fail in real life, you should still write properly synchronized code.
+ *
+ * <p>
+ * Pending interrupts are kept in an array-based binary heap, ordered by time
+ * and then by the order they were scheduled in. Heap nodes are recycled
+ * through a free list, and the time of the earliest pending interrupt is
+ * cached, so checking for due interrupts on every tick is a single
+ * comparison.
  */
 public final class Interrupt {
     /**
@@ -53,7 +58,6 @@ public final class Interrupt {
 	privilege.interrupt = new InterruptPrivilege();
 	
 	enabled = false;
-	pending = new TreeSet<PendingInterrupt>();
     }
 
     /**
@@ -120,17 +124,59 @@ public final class Interrupt {
 	return !enabled;
     }
 
+    /**
+     * Tests whether an interrupt handler is running, as opposed to a thread.
+     * Devices report completed I/O from their interrupt handlers, so a thread
+     * made ready while this is true is being woken by the hardware.
+     *
+     * @return	<tt>true</tt> if an interrupt handler is running.
+     */
+    public boolean inHandler() {
+	return inHandler;
+    }
+
+    /**
+     * Skip over simulated time in which nothing can happen. Called with
+     * interrupts disabled, when the idle thread is about to run again because
+     * no other thread is ready. Since only a pending interrupt can make a
+     * thread ready, every kernel tick before the next interrupt is due would
+     * be spent looping in the idle thread.
+     *
+     * <p>
+     * Time is advanced to the last kernel tick before the next interrupt is
+     * due, and the skipped time is charged as kernel ticks, exactly as if the
+     * idle thread had looped through it. The interrupt fires on the next
+     * tick, when the idle thread re-enables interrupts.
+     */
+    public void idle() {
+	Lib.assertTrue(disabled());
+
+	if (numPending == 0)
+	    return;
+
+	Stats stats = privilege.stats;
+	long skippedTicks = (nextDueTime - stats.totalTicks - 1) / Stats.KernelTick;
+	if (skippedTicks <= 0)
+	    return;
+
+	stats.kernelTicks += skippedTicks * Stats.KernelTick;
+	stats.totalTicks += skippedTicks * Stats.KernelTick;
+
+	if (Lib.test(dbgInt))
+	    System.out.println("Idle, skipping to time = " + stats.totalTicks);
+    }
+
     private void schedule(long when, String type, Runnable handler) {
 	Lib.assertTrue(when>0);
 	
 	long time = privilege.stats.totalTicks + when;
-	PendingInterrupt toOccur = new PendingInterrupt(time, type, handler);
+	PendingInterrupt toOccur = allocate(time, type, handler);
 
-	Lib.debug(dbgInt,
-		  "Scheduling the " + type +
-		  " interrupt handler at time = " + time);
+	if (Lib.test(dbgInt))
+	    System.out.println("Scheduling the " + type +
+			       " interrupt handler at time = " + time);
 
-	pending.add(toOccur);
+	add(toOccur);
     }
 
     private void tick(boolean inKernelMode) {
@@ -153,6 +199,41 @@ public final class Interrupt {
 	enabled = true;
     }
 
+    /**
+     * Return how many user instructions can execute before the next pending
+     * interrupt becomes due. Ticking this many instructions one at a time
+     * would never invoke a handler, so the processor may account for them in
+     * bulk with <tt>tickInstructions()</tt>.
+     */
+    private int instructionsUntilDue() {
+	// per-tick debug output needs every tick to go through tick()
+	if (Lib.test(dbgInt) || numPending == 0)
+	    return 0;
+
+	long quietTicks = nextDueTime - privilege.stats.totalTicks - 1;
+	if (quietTicks < Stats.UserTick)
+	    return 0;
+
+	return (int) Math.min(quietTicks / Stats.UserTick, maxQuietInstructions);
+    }
+
+    /**
+     * Advance simulated time as if <i>count</i> user instructions had each
+     * called <tt>tick(false)</tt>. <i>count</i> must not exceed the last value
+     * returned by <tt>instructionsUntilDue()</tt>, so no interrupt can be due.
+     */
+    private void tickInstructions(int count) {
+	Stats stats = privilege.stats;
+
+	stats.userTicks += (long) count * Stats.UserTick;
+	stats.totalTicks += (long) count * Stats.UserTick;
+
+	// with no instructions to credit there is nothing to check: a handler
+	// that switched threads can leave the interrupts after it due, until
+	// the next tick()
+	Lib.assertTrue(count == 0 || nextDueTime > stats.totalTicks);
+    }
+
     private void checkIfDue() {
 	long time = privilege.stats.totalTicks;
 
@@ -161,27 +242,31 @@ public final class Interrupt {
 	if (Lib.test(dbgInt))
 	    print();
 
-	if (pending.isEmpty())
-	    return;
-
-	if (((PendingInterrupt) pending.first()).time > time)
+	if (nextDueTime > time)
 	    return;
 
-	Lib.debug(dbgInt, "Invoking interrupt handlers at time = " + time);
+	if (Lib.test(dbgInt))
+	    System.out.println("Invoking interrupt handlers at time = " + time);
 	
-	while (!pending.isEmpty() &&
-	       ((PendingInterrupt) pending.first()).time <= time) {
-	    PendingInterrupt next = (PendingInterrupt) pending.first();
-	    pending.remove(next);
+	while (nextDueTime <= time) {
+	    PendingInterrupt next = removeFirst();
+	    String type = next.type;
+	    Runnable handler = next.handler;
 
 	    Lib.assertTrue(next.time <= time);
 
+	    // the handler may schedule another interrupt, which can reuse next
+	    free(next);
+
 	    if (privilege.processor != null)
 		privilege.processor.flushPipe();
 
-	    Lib.debug(dbgInt, "  " + next.type);
+	    if (Lib.test(dbgInt))
+		System.out.println("  " + type);
 			
-	    next.handler.run();
+	    inHandler = true;
+	    handler.run();
+	    inHandler = false;
 	}
 
 	Lib.debug(dbgInt, "  (end of list)");
@@ -192,8 +277,12 @@ public final class Interrupt {
 			   + ", interrupts " + (enabled ? "on" : "off"));
 	System.out.println("Pending interrupts:");
 
-	for (Iterator i=pending.iterator(); i.hasNext(); ) {
-	    PendingInterrupt toOccur = (PendingInterrupt) i.next();
+	PendingInterrupt[] sorted = new PendingInterrupt[numPending];
+	System.arraycopy(pending, 0, sorted, 0, numPending);
+	Arrays.sort(sorted);
+
+	for (int i=0; i<sorted.length; i++) {
+	    PendingInterrupt toOccur = sorted[i];
 	    System.out.println("  " + toOccur.type +
 			       ", scheduled at " + toOccur.time);
 	}
@@ -201,17 +290,86 @@ public final class Interrupt {
 	System.out.println("  (end of list)");
     }
 
-    private class PendingInterrupt implements Comparable {
-	PendingInterrupt(long time, String type, Runnable handler) {
-	    this.time = time;
-	    this.type = type;
-	    this.handler = handler;
-	    this.id = numPendingInterruptsCreated++;
+    /**
+     * Return a node for a new pending interrupt, reusing a freed one if
+     * possible.
+     */
+    private PendingInterrupt allocate(long time, String type,
+				      Runnable handler) {
+	PendingInterrupt toOccur;
+	if (numFree > 0) {
+	    toOccur = freeList[--numFree];
+	    freeList[numFree] = null;
+	}
+	else {
+	    toOccur = new PendingInterrupt();
+	}
+
+	toOccur.time = time;
+	toOccur.type = type;
+	toOccur.handler = handler;
+	toOccur.id = numPendingInterruptsCreated++;
+	return toOccur;
+    }
+
+    /** Return a node that is no longer in the heap to the free list. */
+    private void free(PendingInterrupt toOccur) {
+	toOccur.type = null;
+	toOccur.handler = null;
+
+	if (numFree == freeList.length)
+	    freeList = Arrays.copyOf(freeList, numFree * 2);
+	freeList[numFree++] = toOccur;
+    }
+
+    private void add(PendingInterrupt toOccur) {
+	if (numPending == pending.length)
+	    pending = Arrays.copyOf(pending, numPending * 2);
+
+	// sift up
+	int i = numPending++;
+	while (i > 0) {
+	    int parent = (i-1) / 2;
+	    if (toOccur.compareTo(pending[parent]) >= 0)
+		break;
+	    pending[i] = pending[parent];
+	    i = parent;
+	}
+	pending[i] = toOccur;
+
+	nextDueTime = pending[0].time;
+    }
+
+    private PendingInterrupt removeFirst() {
+	PendingInterrupt first = pending[0];
+	PendingInterrupt last = pending[--numPending];
+	pending[numPending] = null;
+
+	if (numPending > 0) {
+	    // sift the last node down from the root
+	    int i = 0;
+	    while (true) {
+		int child = 2*i + 1;
+		if (child >= numPending)
+		    break;
+		if (child+1 < numPending &&
+		    pending[child+1].compareTo(pending[child]) < 0)
+		    child++;
+		if (pending[child].compareTo(last) >= 0)
+		    break;
+		pending[i] = pending[child];
+		i = child;
+	    }
+	    pending[i] = last;
 	}
 
-	public int compareTo(Object o) {
-	    PendingInterrupt toOccur = (PendingInterrupt) o;
+	nextDueTime = (numPending > 0) ? pending[0].time : Long.MAX_VALUE;
+	return first;
+    }
+
+    private class PendingInterrupt implements Comparable<PendingInterrupt> {
 
+	public int compareTo(PendingInterrupt toOccur) {
 	    // can't return 0 for unequal objects, so check all fields
 	    if (time < toOccur.time)
 		return -1;
@@ -237,10 +395,23 @@ public final class Interrupt {
     private Privilege privilege;
 
     private boolean enabled;
-    private TreeSet<PendingInterrupt> pending;
+    private boolean inHandler = false;
+
+    /** The pending interrupts, a binary heap in <tt>pending[0..numPending-1]</tt>. */
+    private PendingInterrupt[] pending = new PendingInterrupt[16];
+    private int numPending = 0;
+    /** The time of <tt>pending[0]</tt>, or <tt>Long.MAX_VALUE</tt> if none. */
+    private long nextDueTime = Long.MAX_VALUE;
+
+    /** Recycled heap nodes. */
+    private PendingInterrupt[] freeList = new PendingInterrupt[16];
+    private int numFree = 0;
 
     private static final char dbgInt = 'i';
 
+    /** Upper bound on one batch, so a batch never overflows an int. */
+    private static final int maxQuietInstructions = 1 << 20;
+
     private class InterruptPrivilege implements Privilege.InterruptPrivilege {
 	public void schedule(long when, String type, Runnable handler) {
 	    Interrupt.this.schedule(when, type, handler);
@@ -249,5 +420,13 @@ public final class Interrupt {
 	public void tick(boolean inKernelMode) {
 	    Interrupt.this.tick(inKernelMode);
 	}
+
+	public int instructionsUntilDue() {
+	    return Interrupt.this.instructionsUntilDue();
+	}
+
+	public void tickInstructions(int count) {
+	    Interrupt.this.tickInstructions(count);
+	}
     }
 }
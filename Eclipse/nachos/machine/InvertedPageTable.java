@@ -0,0 +1,207 @@
+package nachos.machine;
+
+import java.util.Arrays;
+
+/**
+ * A kernel-wide inverted page table. There is one mapping per physical frame, keyed by the
+ * owning (pid, vpn) pair, so its size depends only on the number of physical pages and not on
+ * the size of any virtual address space.
+ *
+ * <p>
+ * Forward lookups go through an open-addressing hash table with linear probing; deletions use
+ * backward shifting so no tombstones are left behind. A frame-indexed reverse map answers
+ * "who owns this frame" in constant time, which is what victim selection needs.
+ *
+ * <p>
+ * A frame shared copy-on-write by several processes is recorded under just one of them (or, once
+ * that one lets go of it, none), so only that owner can pick it as a victim. Pins belong to the
+ * frame rather than its mapping, since any of the sharers may pin it.
+ */
+public class InvertedPageTable {
+
+    /**
+     * Allocate an inverted page table able to map <i>numFrames</i> physical pages.
+     *
+     * @param numFrames
+     *            the number of physical pages.
+     */
+    public InvertedPageTable(int numFrames) {
+        this.numFrames = numFrames;
+
+        // keep the load factor at or below 1/2
+        int capacity = 1;
+        while (capacity < numFrames * 2)
+            capacity <<= 1;
+        mask = capacity - 1;
+
+        keys = new long[capacity];
+        values = new int[capacity];
+        Arrays.fill(keys, emptyKey);
+
+        framePid = new int[numFrames];
+        frameVPN = new int[numFrames];
+        framePins = new int[numFrames];
+        Arrays.fill(framePid, -1);
+        Arrays.fill(frameVPN, -1);
+    }
+
+    /**
+     * Record that virtual page <i>vpn</i> of process <i>pid</i> now lives in frame <i>ppn</i>.
+     * Any previous mapping of either the page or the frame is replaced.
+     */
+    public void insert(int pid, int vpn, int ppn) {
+        Lib.assertTrue(pid >= 0 && vpn >= 0);
+        Lib.assertTrue(ppn >= 0 && ppn < numFrames);
+
+        remove(pid, vpn);
+        removeFrame(ppn);
+
+        long key = makeKey(pid, vpn);
+        int slot = hash(key);
+        while (keys[slot] != emptyKey)
+            slot = (slot + 1) & mask;
+
+        keys[slot] = key;
+        values[slot] = ppn;
+        framePid[ppn] = pid;
+        frameVPN[ppn] = vpn;
+        size++;
+    }
+
+    /**
+     * Return the frame holding virtual page <i>vpn</i> of process <i>pid</i>, or -1 if the page is
+     * not resident.
+     */
+    public int lookup(int pid, int vpn) {
+        int slot = find(makeKey(pid, vpn));
+        return slot == -1 ? -1 : values[slot];
+    }
+
+    /**
+     * Forget the mapping of virtual page <i>vpn</i> of process <i>pid</i>.
+     *
+     * @return the frame the page was mapped to, or -1 if it was not mapped.
+     */
+    public int remove(int pid, int vpn) {
+        int slot = find(makeKey(pid, vpn));
+        if (slot == -1)
+            return -1;
+
+        int ppn = values[slot];
+        framePid[ppn] = -1;
+        frameVPN[ppn] = -1;
+        deleteSlot(slot);
+        return ppn;
+    }
+
+    /**
+     * Forget whatever mapping currently uses frame <i>ppn</i>.
+     */
+    public void removeFrame(int ppn) {
+        if (framePid[ppn] != -1)
+            remove(framePid[ppn], frameVPN[ppn]);
+    }
+
+    /**
+     * Forget every mapping owned by process <i>pid</i>.
+     */
+    public void removeProcess(int pid) {
+        for (int ppn = 0; ppn < numFrames; ppn++) {
+            if (framePid[ppn] == pid)
+                remove(pid, frameVPN[ppn]);
+        }
+    }
+
+    /** Return the pid owning frame <i>ppn</i>, or -1 if the frame is unmapped. */
+    public int getOwnerPid(int ppn) {
+        return framePid[ppn];
+    }
+
+    /** Return the vpn mapped to frame <i>ppn</i>, or -1 if the frame is unmapped. */
+    public int getOwnerVPN(int ppn) {
+        return frameVPN[ppn];
+    }
+
+    /**
+     * Pin frame <i>ppn</i> so it is not chosen as a victim while the kernel is copying to or from
+     * it. Pins nest; each call must be matched by a call to <tt>unpin()</tt>.
+     */
+    public void pin(int ppn) {
+        framePins[ppn]++;
+    }
+
+    /** Release one pin of frame <i>ppn</i>. */
+    public void unpin(int ppn) {
+        Lib.assertTrue(framePins[ppn] > 0);
+        framePins[ppn]--;
+    }
+
+    /** Return <tt>true</tt> if frame <i>ppn</i> must not be evicted. */
+    public boolean isPinned(int ppn) {
+        return framePins[ppn] != 0;
+    }
+
+    /** Return the number of resident pages. */
+    public int size() {
+        return size;
+    }
+
+    private int find(long key) {
+        int slot = hash(key);
+        while (keys[slot] != emptyKey) {
+            if (keys[slot] == key)
+                return slot;
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Empty <i>slot</i> and shift back any later entries of the same probe run, so that lookups
+     * never stop early at the hole.
+     */
+    private void deleteSlot(int slot) {
+        int hole = slot;
+        int next = (hole + 1) & mask;
+        while (keys[next] != emptyKey) {
+            int home = hash(keys[next]);
+            // move the entry if its home slot is not cyclically within (hole, next]
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                keys[hole] = keys[next];
+                values[hole] = values[next];
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        keys[hole] = emptyKey;
+        size--;
+    }
+
+    private int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h >>> 32) & mask;
+    }
+
+    private static long makeKey(int pid, int vpn) {
+        return ((long) pid << 32) | (vpn & 0xFFFFFFFFL);
+    }
+
+    private static final long emptyKey = -1L;
+
+    private final int numFrames;
+    private final int mask;
+
+    /** (pid, vpn) keys of the hash table, or <tt>emptyKey</tt>. */
+    private final long[] keys;
+    /** The frame each key maps to. */
+    private final int[] values;
+
+    /** Reverse map: owning pid of each frame, or -1. */
+    private final int[] framePid;
+    /** Reverse map: vpn held by each frame, or -1. */
+    private final int[] frameVPN;
+    /** Number of outstanding pins on each frame. */
+    private final int[] framePins;
+
+    private int size = 0;
+}
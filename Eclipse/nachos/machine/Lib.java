@@ -134,7 +134,9 @@ public final class Lib {
      * @return	<tt>true</tt> if this flag was enabled on the command line.
      */
     public static boolean test(char flag) {
-	if (debugFlags == null)
+	if (!anyDebugFlags)
+	    return false;
+	else if (debugFlags == null)
 	    return false;
 	else if (debugFlags[(int) '+'])
 	    return true;
@@ -156,14 +158,23 @@ public final class Lib {
 	char[] newFlags = flagsString.toCharArray();
 	for (int i=0; i<newFlags.length; i++) {
 	    char c = newFlags[i];
-	    if (c >= 0 && c < 0x80)
+	    if (c >= 0 && c < 0x80) {
 		debugFlags[(int) c] = true;
+		anyDebugFlags = true;
+	    }
 	}
     }
 
     /** Debug flags specified on the command line. */
     private static boolean debugFlags[];
 
+    /**
+     * <tt>true</tt> once any debug flag has been enabled. Flags are only
+     * enabled while processing the command line, so after start-up this is
+     * effectively a constant and <tt>test()</tt> reduces to one branch.
+     */
+    private static boolean anyDebugFlags = false;
+
     /**
      * Read a file, verifying that the requested number of bytes is read, and
      * verifying that the read operation took a non-zero amount of time.
@@ -193,8 +193,20 @@ public final class Machine {
 	if (Config.getBoolean("Machine.stubFileSystem"))
 	    stubFileSystem = new StubFileSystem(privilege, testDirectory);
 
-	if (Config.getBoolean("Machine.networkLink"))
-	    networkLink = new NetworkLink(privilege);
+	if (Config.getBoolean("Machine.disk"))
+	    disk = new Disk(privilege, testDirectory);
+
+	if (Config.getBoolean("Machine.networkLink")) {
+	    int numLinks = 1;
+	    if (Config.getBoolean("NetworkLink.loopback", false))
+		numLinks = Config.getInteger("NetworkLink.numLinks", 1);
+	    Lib.assertTrue(numLinks > 0 && numLinks <= Packet.linkAddressLimit);
+
+	    networkLinks = new NetworkLink[numLinks];
+	    for (int i=0; i<numLinks; i++)
+		networkLinks[i] = new NetworkLink(privilege);
+	    networkLink = networkLinks[0];
+	}
     }
 
     private static void checkUserClasses() {
@@ -344,6 +356,13 @@ public final class Machine {
      * @return	the stub file system, or <tt>null</tt> if it is not present.
      */
     public static FileSystem stubFileSystem() { return stubFileSystem; }
+
+    /**
+     * Return the simulated disk.
+     *
+     * @return	the simulated disk, or <tt>null</tt> if it is not present.
+     */
+    public static Disk disk() { return disk; }
     
     /**
      * Return the network link.
@@ -351,6 +370,30 @@ public final class Machine {
      * @return	the network link,  or <tt>null</tt> if it is not present.
      */
     public static NetworkLink networkLink() { return networkLink; }
+
+    /**
+     * Return network link <i>i</i>. There is more than one only if
+     * <tt>NetworkLink.loopback</tt> is set, in which case
+     * <tt>NetworkLink.numLinks</tt> links are attached to the same simulated
+     * network, so that one kernel can act as several nodes.
+     *
+     * @param	i	the index of the link, from 0.
+     * @return	the network link, or <tt>null</tt> if it is not present.
+     */
+    public static NetworkLink networkLink(int i) {
+	if (networkLinks == null || i < 0 || i >= networkLinks.length)
+	    return null;
+	return networkLinks[i];
+    }
+
+    /**
+     * Return the number of network links.
+     *
+     * @return	the number of network links.
+     */
+    public static int getNumNetworkLinks() {
+	return networkLinks == null ? 0 : networkLinks.length;
+    }
     
     /**
      * Return the autograder.
@@ -365,7 +408,9 @@ public final class Machine {
     private static Processor processor = null;
     private static SerialConsole console = null;
     private static FileSystem stubFileSystem = null;
+    private static Disk disk = null;
     private static NetworkLink networkLink = null;
+    private static NetworkLink[] networkLinks = null;
     private static AutoGrader autoGrader = null;
 
     private static String autoGraderClassName = "nachos.ag.AutoGrader";
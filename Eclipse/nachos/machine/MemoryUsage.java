@@ -1,15 +1,21 @@
 package nachos.machine;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
+/**
+ * Tracks which physical pages are in use. Each page has a reference count: the number of
+ * processes sharing it (and the kernel's cache of executable text, if it holds the page), so that a
+ * shared page is only released when the last of them lets go of it.
+ */
 public class MemoryUsage {
 
 	public String toString() {
 		List<Integer> free = new ArrayList<>();
 		List<Integer> used = new ArrayList<>();
-		for(int i = 0 ; i < memUsageList.size(); i ++) {
-			if (memUsageList.get(i)) {
+		for(int i = 0 ; i < numPages; i ++) {
+			if (references[i] > 0) {
 				used.add(i);
 			} else {
 				free.add(i);
@@ -19,33 +25,29 @@ public class MemoryUsage {
 	}
 	
     /**
-     * Initialize the page list memUsageList. memUsageList tracks the usage of physical memory.
-     * true: the page has been used false: the page is free section
+     * Initialize the reference counts. references tracks the usage of physical memory.
+     * 0: the page is free, otherwise the number of processes using it
      * */
     public MemoryUsage() {
-        for (int i = 0; i < numPhysPages; i++) {
-            memUsageList.add(false);
-        }
+        setMEMList(numPhysPages);
     }
 
     /**
-     * Initialize the page list memUsageList. memUsageList tracks the usage of physical memory.
-     * true: the page has been used false: the page is free
+     * Add numPages more free pages to track.
      * 
      * numPages: the number of pages in physicall memory page: the starting page of compressed
      * section
      * */
     public void setMEMList(int numPages) {
-        for (int i = 0; i < numPages; i++) {
-            memUsageList.add(false);
-        }
+        references = Arrays.copyOf(references, this.numPages + numPages);
+        this.numPages += numPages;
     }
 
     /** find one empty page */
     public int allocatePageInUncomp() {
         int page = -1;
         for (int i = 0; i < compStartPage; i++) {
-            if (!memUsageList.get(i)) {
+            if (references[i] == 0) {
                 page = i;
                 break;
             }
@@ -57,7 +59,7 @@ public class MemoryUsage {
     public List<Integer> findMultiPagesUncomp(int numPages) {
         List<Integer> freePages = new ArrayList<Integer>();
         for (int i = 0; i < compStartPage; i++) {
-            if (freePages.size() < numPages && !memUsageList.get(i)) {
+            if (freePages.size() < numPages && references[i] == 0) {
                 freePages.add(i);
             }
         }
@@ -72,8 +74,8 @@ public class MemoryUsage {
         int startPage = -1;
         int counter = 0;
 
-        for (int i = compStartPage; i < memUsageList.size(); i++) {
-            if (!memUsageList.get(i))
+        for (int i = compStartPage; i < numPages; i++) {
+            if (references[i] == 0)
                 counter++;
             else
                 counter = 0;
@@ -88,20 +90,44 @@ public class MemoryUsage {
         return startPage;
     }
 
-    /** mark the page which has been used by setting it to true */
+    /** mark the page which has been used, by one process */
     public void setPage(int targetPage) {
-        memUsageList.set(targetPage, true);
+        references[targetPage] = 1;
     }
 
-    /** mark the page which has been released by setting it to false */
+    /** add a reference to a page in use, for one more process sharing it */
+    public void addReference(int targetPage) {
+        Lib.assertTrue(references[targetPage] > 0);
+        references[targetPage]++;
+    }
+
+    /** drop one reference to the page; it is released when no process uses it any more */
     public void releasePage(int targetPage) {
-        memUsageList.set(targetPage, false);
+        if (references[targetPage] > 0)
+            references[targetPage]--;
+    }
+
+    /** the number of processes using the page, 0 if it is free */
+    public int getReferenceCount(int targetPage) {
+        return references[targetPage];
+    }
+
+    /**
+     * move the references of a page to a free page, releasing it. Used when compressed data is
+     * moved; moving a run of pages to lower numbers in increasing order is safe even if the runs
+     * overlap
+     */
+    public void movePage(int fromPage, int toPage) {
+        int count = references[fromPage];
+        references[fromPage] = 0;
+        references[toPage] = count;
     }
 
     private int numPhysPages = Machine.processor().getNumPhysPages();
 
-    /** the usage of compressed section */
-    private List<Boolean> memUsageList = new ArrayList<Boolean>();
+    /** the number of processes using each page, 0 if free */
+    private int[] references = new int[0];
+    private int numPages = 0;
 
     /** which page is the start of compressed section */
     private int compStartPage = Machine.processor().getCompressMemStartingPPN();
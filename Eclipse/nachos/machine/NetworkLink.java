@@ -10,6 +10,7 @@ import java.net.DatagramPacket;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.net.SocketException;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 /**
  * A full-duplex network link. Provides ordered, unreliable delivery of
@@ -57,6 +58,18 @@ import java.net.SocketException;
  * for a network layer in Nachos. This should simplify your design for the
  * session/transport layer, since you can assume packets never arrive out of
  * order.
+ *
+ * <p>
+ * Normally each link is a UDP socket on the local host, with a thread of its
+ * own waiting for datagrams, so that separate Nachos JVMs can talk to one
+ * another. If <tt>NetworkLink.loopback</tt> is set in <tt>nachos.conf</tt>,
+ * links instead only reach other loopback links in the same JVM: a packet
+ * sent is put, as it is, on the queue of the link it is addressed to, and the
+ * receiver picks it up at its next receive interrupt. There is no socket, no
+ * copying or parsing of packet bytes, and no host thread, so traffic depends
+ * only on simulated time and the random seed, and a run can be repeated
+ * exactly. <tt>Machine.networkLink(int)</tt> returns the further links
+ * created for <tt>NetworkLink.numLinks</tt>.
  */
 public class NetworkLink {
     /**
@@ -87,6 +100,21 @@ public class NetworkLink {
 	reliability = Config.getDouble("NetworkLink.reliability");
 	Lib.assertTrue(reliability > 0 && reliability <= 1.0);
 
+	receiveInterrupt = new Runnable() {
+		public void run() { receiveInterrupt(); }
+	    };
+
+	sendInterrupt = new Runnable() {
+		public void run() { sendInterrupt(); }
+	    };		
+
+	loopback = Config.getBoolean("NetworkLink.loopback", false);
+	if (loopback) {
+	    openLoopback();
+	    scheduleReceiveInterrupt();
+	    return;
+	}
+
 	socket = null;
 
 	for (linkAddress=0;linkAddress<Packet.linkAddressLimit;linkAddress++) {
@@ -106,14 +134,6 @@ public class NetworkLink {
 
 	System.out.print("(" + linkAddress + ")");
 
-	receiveInterrupt = new Runnable() {
-		public void run() { receiveInterrupt(); }
-	    };
-
-	sendInterrupt = new Runnable() {
-		public void run() { sendInterrupt(); }
-	    };		
-	
 	scheduleReceiveInterrupt();
 
 	Thread receiveThread = new Thread(new Runnable() {
@@ -123,6 +143,29 @@ public class NetworkLink {
 	receiveThread.start();
     }
 
+    private void openLoopback() {
+	int address;
+	synchronized (loopbackLinks) {
+	    for (address=0; address<Packet.linkAddressLimit; address++) {
+		if (loopbackLinks[address] == null) {
+		    loopbackLinks[address] = this;
+		    break;
+		}
+	    }
+	}
+
+	if (address == Packet.linkAddressLimit) {
+	    System.out.println("");
+	    System.out.println("Unable to acquire a link address!");
+	    Lib.assertNotReached();
+	}
+
+	linkAddress = (byte) address;
+	inbox = new ConcurrentLinkedQueue<Packet>();
+
+	System.out.print("(loopback " + linkAddress + ")");
+    }
+
     /**
      * Returns the address of this network link.
      *
@@ -163,6 +206,20 @@ public class NetworkLink {
     private synchronized void receiveInterrupt() {
 	Lib.assertTrue(incomingPacket == null);
 
+	if (loopback) {
+	    Packet p = inbox.poll();
+	    if (p != null && Machine.autoGrader().canReceivePacket(privilege)) {
+		incomingPacket = p;
+		privilege.stats.numPacketsReceived++;
+	    }
+
+	    if (incomingPacket == null)
+		scheduleReceiveInterrupt();
+	    else if (receiveInterruptHandler != null)
+		receiveInterruptHandler.run();
+	    return;
+	}
+
 	if (incomingBytes != null) {
 	    if (Machine.autoGrader().canReceivePacket(privilege)) {
 		try {
@@ -266,6 +323,17 @@ public class NetworkLink {
     private void sendPacket() {
 	Packet p = outgoingPacket;
 	outgoingPacket = null;
+
+	if (loopback) {
+	    // like a datagram to a port nobody listens on, a packet to a link
+	    // that does not exist is lost
+	    NetworkLink dst = loopbackLinks[p.dstLink];
+	    if (dst != null) {
+		dst.inbox.add(p);
+		privilege.stats.numPacketsSent++;
+	    }
+	    return;
+	}
 	
 	try {
 	    socket.send(new DatagramPacket(p.packetBytes, p.packetBytes.length,
@@ -307,6 +375,10 @@ public class NetworkLink {
 	networkID  = (byte) (hash/0x4E41);	
     }	
 
+    /** The loopback link with each address, or <tt>null</tt>. */
+    private static final NetworkLink[] loopbackLinks =
+	new NetworkLink[Packet.linkAddressLimit];
+
     private Privilege privilege;
 
     private Runnable receiveInterrupt;
@@ -318,6 +390,10 @@ public class NetworkLink {
     private InetAddress localHost;
     private DatagramSocket socket;
 
+    private boolean loopback;
+    /** In loopback mode, the packets sent to this link, oldest first. */
+    private ConcurrentLinkedQueue<Packet> inbox;
+
     private byte linkAddress;
     private double reliability;
 
@@ -0,0 +1,286 @@
+package nachos.machine;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A single-level page table stored as parallel primitive arrays instead of one
+ * <tt>TranslationEntry</tt> object per page. Each virtual page has a physical page number, a
+ * flags word, an offset within its compressed block, and a handle naming that block.
+ *
+ * <p>
+ * Compressed blocks are shared by several pages (and possibly several page tables), so they are
+ * kept in a global registry and referenced by integer handle. A block's handle is released when
+ * the last page referring to it is pointed elsewhere.
+ *
+ * <p>
+ * An entry that was never set (or was <tt>clear()</tt>ed) plays the role of a <tt>null</tt>
+ * <tt>TranslationEntry</tt>: it is not allocated and not valid.
+ */
+public final class PackedPageTable {
+    /**
+     * Allocate a page table of <i>numPages</i> unallocated entries.
+     *
+     * @param numPages
+     *            the number of virtual pages this table maps.
+     */
+    public PackedPageTable(int numPages) {
+        this.numPages = numPages;
+        ppns = new int[numPages];
+        flags = new int[numPages];
+        compressOffsets = new int[numPages];
+        blockHandles = new int[numPages];
+
+        for (int vpn = 0; vpn < numPages; vpn++) {
+            ppns[vpn] = -1;
+            compressOffsets[vpn] = -1;
+            blockHandles[vpn] = -1;
+        }
+    }
+
+    /** Return the number of virtual pages this table maps. */
+    public int getNumPages() {
+        return numPages;
+    }
+
+    /**
+     * Set every field of an entry at once, in the same order as the <tt>TranslationEntry</tt>
+     * constructor. The entry becomes allocated.
+     */
+    public void set(int vpn, int ppn, boolean valid, boolean readOnly, boolean used,
+            boolean dirty, boolean compressed, int compressOffset, CompressMemBlock block) {
+        int f = flagAllocated;
+        if (valid)
+            f |= flagValid;
+        if (readOnly)
+            f |= flagReadOnly;
+        if (used)
+            f |= flagUsed;
+        if (dirty)
+            f |= flagDirty;
+        if (compressed)
+            f |= flagCompressed;
+
+        ppns[vpn] = ppn;
+        flags[vpn] = f;
+        compressOffsets[vpn] = compressOffset;
+        setCompressMemBlock(vpn, block);
+    }
+
+    /** Return the entry to the unallocated state. */
+    public void clear(int vpn) {
+        setCompressMemBlock(vpn, null);
+        ppns[vpn] = -1;
+        flags[vpn] = 0;
+        compressOffsets[vpn] = -1;
+    }
+
+    /**
+     * Mark a page as swapped out into <i>block</i> at <i>offsetInBlock</i>. Its physical page is
+     * forgotten and its used and dirty bits are cleared; the read-only bit is kept.
+     */
+    public void setSwappedOut(int vpn, int offsetInBlock, CompressMemBlock block) {
+        ppns[vpn] = -1;
+        flags[vpn] = (flags[vpn] & (flagAllocated | flagReadOnly)) | flagCompressed;
+        compressOffsets[vpn] = offsetInBlock;
+        setCompressMemBlock(vpn, block);
+    }
+
+    /**
+     * Record an access made by the processor: set the used bit, and the dirty bit too if
+     * <i>writing</i>.
+     */
+    public void touch(int vpn, boolean writing) {
+        flags[vpn] |= writing ? (flagUsed | flagDirty) : flagUsed;
+    }
+
+    public boolean isAllocated(int vpn) {
+        return (flags[vpn] & flagAllocated) != 0;
+    }
+
+    public int getPPN(int vpn) {
+        return ppns[vpn];
+    }
+
+    public void setPPN(int vpn, int ppn) {
+        ppns[vpn] = ppn;
+    }
+
+    public boolean isValid(int vpn) {
+        return (flags[vpn] & flagValid) != 0;
+    }
+
+    public void setValid(int vpn, boolean valid) {
+        setFlag(vpn, flagValid, valid);
+    }
+
+    public boolean isReadOnly(int vpn) {
+        return (flags[vpn] & flagReadOnly) != 0;
+    }
+
+    public void setReadOnly(int vpn, boolean readOnly) {
+        setFlag(vpn, flagReadOnly, readOnly);
+    }
+
+    public boolean isUsed(int vpn) {
+        return (flags[vpn] & flagUsed) != 0;
+    }
+
+    public void setUsed(int vpn, boolean used) {
+        setFlag(vpn, flagUsed, used);
+    }
+
+    public boolean isDirty(int vpn) {
+        return (flags[vpn] & flagDirty) != 0;
+    }
+
+    public void setDirty(int vpn, boolean dirty) {
+        setFlag(vpn, flagDirty, dirty);
+    }
+
+    /**
+     * Return <tt>true</tt> if the page shares its frame with another process after a fork. Such a
+     * page is also read-only until it is copied.
+     */
+    public boolean isCopyOnWrite(int vpn) {
+        return (flags[vpn] & flagCopyOnWrite) != 0;
+    }
+
+    public void setCopyOnWrite(int vpn, boolean copyOnWrite) {
+        setFlag(vpn, flagCopyOnWrite, copyOnWrite);
+    }
+
+    public boolean isCompressed(int vpn) {
+        return (flags[vpn] & flagCompressed) != 0;
+    }
+
+    public void setCompressed(int vpn, boolean compressed) {
+        setFlag(vpn, flagCompressed, compressed);
+    }
+
+    public int getCompressOffset(int vpn) {
+        return compressOffsets[vpn];
+    }
+
+    public void setCompressOffset(int vpn, int compressOffset) {
+        compressOffsets[vpn] = compressOffset;
+    }
+
+    public CompressMemBlock getCompressMemBlock(int vpn) {
+        int handle = blockHandles[vpn];
+        return handle == -1 ? null : blockRegistry[handle];
+    }
+
+    public void setCompressMemBlock(int vpn, CompressMemBlock block) {
+        int oldHandle = blockHandles[vpn];
+        int newHandle = (block == null) ? -1 : retainBlock(block);
+
+        blockHandles[vpn] = newHandle;
+        if (oldHandle != -1)
+            releaseBlock(oldHandle);
+    }
+
+    /**
+     * Return every compressed block referenced by some page table, in no particular order.
+     */
+    public static List<CompressMemBlock> getCompressMemBlocks() {
+        List<CompressMemBlock> blocks = new ArrayList<CompressMemBlock>();
+        for (CompressMemBlock block : blockRegistry) {
+            if (block != null)
+                blocks.add(block);
+        }
+        return blocks;
+    }
+
+    /**
+     * Return a copy of an entry as a <tt>TranslationEntry</tt>, or <tt>null</tt> if it is not
+     * allocated. Intended for debugging output and for code that still expects entry objects.
+     */
+    public TranslationEntry getEntry(int vpn) {
+        if (!isAllocated(vpn))
+            return null;
+
+        return new TranslationEntry(vpn, ppns[vpn], isValid(vpn), isReadOnly(vpn), isUsed(vpn),
+                isDirty(vpn), isCompressed(vpn), compressOffsets[vpn], getCompressMemBlock(vpn));
+    }
+
+    public String toString() {
+        StringBuffer sb = new StringBuffer();
+        for (int vpn = 0; vpn < numPages; vpn++) {
+            if (isAllocated(vpn))
+                sb.append(getEntry(vpn)).append("\n");
+        }
+        return sb.toString();
+    }
+
+    private void setFlag(int vpn, int flag, boolean value) {
+        if (value)
+            flags[vpn] |= flag;
+        else
+            flags[vpn] &= ~flag;
+    }
+
+    private static int retainBlock(CompressMemBlock block) {
+        if (block.handle == -1) {
+            if (numFreeHandles == 0)
+                growRegistry();
+
+            block.handle = freeHandles[--numFreeHandles];
+            blockRegistry[block.handle] = block;
+        }
+        Lib.assertTrue(blockRegistry[block.handle] == block);
+
+        blockRefs[block.handle]++;
+        return block.handle;
+    }
+
+    private static void releaseBlock(int handle) {
+        Lib.assertTrue(blockRefs[handle] > 0);
+
+        if (--blockRefs[handle] == 0) {
+            blockRegistry[handle].handle = -1;
+            blockRegistry[handle] = null;
+            freeHandles[numFreeHandles++] = handle;
+        }
+    }
+
+    private static void growRegistry() {
+        int oldSize = blockRegistry.length;
+        int newSize = Math.max(16, oldSize * 2);
+
+        CompressMemBlock[] registry = new CompressMemBlock[newSize];
+        int[] refs = new int[newSize];
+        int[] free = new int[newSize];
+        System.arraycopy(blockRegistry, 0, registry, 0, oldSize);
+        System.arraycopy(blockRefs, 0, refs, 0, oldSize);
+
+        // all old handles are in use, so only the new ones are free
+        for (int handle = newSize - 1; handle >= oldSize; handle--)
+            free[numFreeHandles++] = handle;
+
+        blockRegistry = registry;
+        blockRefs = refs;
+        freeHandles = free;
+    }
+
+    private static final int flagAllocated = 0x01;
+    private static final int flagValid = 0x02;
+    private static final int flagReadOnly = 0x04;
+    private static final int flagUsed = 0x08;
+    private static final int flagDirty = 0x10;
+    private static final int flagCompressed = 0x20;
+    private static final int flagCopyOnWrite = 0x40;
+
+    private final int numPages;
+    private final int[] ppns;
+    private final int[] flags;
+    private final int[] compressOffsets;
+    private final int[] blockHandles;
+
+    /** Compressed blocks currently referenced by some page table, indexed by handle. */
+    private static CompressMemBlock[] blockRegistry = new CompressMemBlock[0];
+    /** Number of page table entries referring to each handle. */
+    private static int[] blockRefs = new int[0];
+    private static int[] freeHandles = new int[0];
+    private static int numFreeHandles = 0;
+}
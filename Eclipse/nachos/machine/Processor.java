@@ -2,12 +2,7 @@
 
 package nachos.machine;
 
-import java.util.List;
-import java.util.ArrayList;
-import java.util.Collections;
-
 import nachos.security.Privilege;
-import nachos.userprog.UserProcess;
 
 /**
  * The <tt>Processor</tt> class simulates a MIPS processor that supports a subset of the R3000
@@ -97,12 +92,25 @@ public final class Processor {
         Instruction inst = new Instruction();
 
         while (true) {
+            // instructions that are known not to make any interrupt due can skip the per-tick
+            // bookkeeping; their time is credited in one step before anything can observe it
+            int quiet = batchTicks ? privilege.interrupt.instructionsUntilDue() : 0;
+            int executed = 0;
+
             try {
+                while (executed < quiet) {
+                    inst.run();
+                    executed++;
+                }
                 inst.run();
             } catch (MipsException e) {
+                privilege.interrupt.tickInstructions(executed);
+                executed = 0;
                 e.handle();
             }
 
+            if (executed > 0)
+                privilege.interrupt.tickInstructions(executed);
             privilege.interrupt.tick(false);
         }
     }
@@ -179,6 +187,34 @@ public final class Processor {
         Lib.assertTrue(!usingTLB);
 
         this.translations = pageTable;
+        this.packedPageTable = null;
+    }
+
+    /**
+     * Get the current packed page table, set by the last call to
+     * <tt>setPageTable(PackedPageTable)</tt>.
+     *
+     * @return the current packed page table, or <tt>null</tt> if an array of translation entries
+     *         is in use instead.
+     */
+    public PackedPageTable getPackedPageTable() {
+        Lib.assertTrue(!usingTLB);
+
+        return packedPageTable;
+    }
+
+    /**
+     * Set the page table pointer to a packed page table. All further address translations will
+     * use it until the next call to either <tt>setPageTable()</tt> method.
+     *
+     * @param pageTable
+     *            the page table to use.
+     */
+    public void setPageTable(PackedPageTable pageTable) {
+        Lib.assertTrue(!usingTLB);
+
+        this.translations = null;
+        this.packedPageTable = pageTable;
     }
 
     /**
@@ -305,48 +341,6 @@ public final class Processor {
         return (int) ((address & 0xFFFFFFFFL) % pageSize);
     }
 
-    public ArrayList<Integer> findVictim(int victimNum) {
-    	// System.out.println("page table in findVictim:\n" + UserProcess.printPageTable(translations));
-        ArrayList<Integer> victims = new ArrayList<Integer>();
-        List<Integer> randomIndexes = new ArrayList<>();
-        for (int i = 0 ; i < translations.length ; i++) {
-        	randomIndexes.add(i);
-        }
-        Collections.shuffle(randomIndexes);
-        
-        for (int i : randomIndexes) {
-        	if (victims.size() == victimNum) break;
-        	if (translations[i] != null && !translations[i].compressed && translations[i].valid)
-                victims.add(i);
-        }
-        
-        /*for (int i : randomIndexes) {
-        	if (victims.size() == victimNum) break;
-        	if (translations[i] != null && !translations[i].compressed && translations[i].valid && !translations[i].used && !translations[i].dirty)
-                victims.add(i);
-        }
-        
-        for (int i : randomIndexes) {
-        	if (victims.size() == victimNum) break;
-        	if (translations[i] != null && !translations[i].compressed && translations[i].valid && !translations[i].used && translations[i].dirty)
-                victims.add(i);
-        }
-        
-        for (int i : randomIndexes) {
-        	if (victims.size() == victimNum) break;
-        	if (translations[i] != null && !translations[i].compressed && translations[i].valid && translations[i].used && !translations[i].dirty)
-                victims.add(i);
-        }
-        
-        for (int i : randomIndexes) {
-        	if (victims.size() == victimNum) break;
-        	if (translations[i] != null && !translations[i].compressed && translations[i].valid && translations[i].used && translations[i].dirty)
-                victims.add(i);
-        }*/
-
-        return victims;
-    }
-
     private void finishLoad() {
         delayedLoad(0, 0, 0);
     }
@@ -385,6 +379,9 @@ public final class Processor {
 
         TranslationEntry entry = null;
         privilege.stats.numMemoryAccess++;
+        // a packed page table is indexed by vpn like an array of entries
+        if (packedPageTable != null)
+            return translatePacked(vaddr, vpn, offset, writing);
         // if not using a TLB, then the vpn is an index into the table
         if (!usingTLB) {
             if (translations == null || vpn >= translations.length ||
@@ -437,6 +434,40 @@ public final class Processor {
         return paddr;
     }
 
+    /**
+     * The part of <tt>translate()</tt> that looks up a page in the current packed page table. Makes
+     * the same checks, in the same order, as the <tt>TranslationEntry</tt> path.
+     */
+    private int translatePacked(int vaddr, int vpn, int offset, boolean writing)
+            throws MipsException {
+        PackedPageTable pageTable = packedPageTable;
+
+        if (vpn >= pageTable.getNumPages() || !pageTable.isValid(vpn)) {
+            privilege.stats.numPageFaults++;
+            Lib.debug(dbgProcessor, "\t\tpage fault");
+            throw new MipsException(exceptionPageFault, vaddr);
+        }
+
+        if (writing && pageTable.isReadOnly(vpn)) {
+            Lib.debug(dbgProcessor, "\t\tread-only exception");
+            throw new MipsException(exceptionReadOnly, vaddr);
+        }
+
+        int ppn = pageTable.getPPN(vpn);
+        if (ppn < 0 || ppn >= numPhysPages) {
+            Lib.debug(dbgProcessor, "\t\tbad ppn");
+            throw new MipsException(exceptionBusError, vaddr);
+        }
+
+        pageTable.touch(vpn, writing);
+
+        int paddr = (ppn * pageSize) + offset;
+
+        if (Lib.test(dbgProcessor))
+            System.out.println("\t\tpaddr=0x" + Lib.toHexString(paddr));
+        return paddr;
+    }
+
     /**
      * Read </i>size</i> (1, 2, or 4) bytes of virtual memory at <i>vaddr</i>, and return the
      * result.
@@ -629,6 +660,8 @@ public final class Processor {
      * is a TLB.
      */
     private TranslationEntry[] translations;
+    /** The packed page table in use instead of <tt>translations</tt>, if any. */
+    private PackedPageTable packedPageTable = null;
 
     /** Size of a page, in bytes. */
     public static final int pageSize = 0x400;
@@ -639,6 +672,12 @@ public final class Processor {
     /** Main memory for user programs. */
     private byte[] mainMemory;
 
+    /**
+     * <tt>true</tt> if <tt>run()</tt> should account for runs of instructions that cannot make an
+     * interrupt due in bulk, instead of ticking after every instruction.
+     */
+    private boolean batchTicks = Config.getBoolean("Processor.batchTicks", false);
+
     /** uncompressedMemSize : CompressedMemSize */
     private int memoryDivideRatio = 1;
 
@@ -46,4 +46,25 @@ public interface SerialConsole {
      * @param	value	the byte to be sent (the upper 24 bits are ignored).
      */
     public void writeByte(int value);
+
+    /**
+     * Send up to <i>length</i> bytes from <i>buf</i> at once, as a single
+     * transfer. The send interrupt handler is called once, when every byte
+     * accepted has been sent. If a send is already in progress, the result is
+     * not defined.
+     *
+     * <p>
+     * A console that can only send a byte at a time accepts just the first
+     * byte, which is what this default implementation does.
+     *
+     * @param	buf	the buffer holding the bytes to send.
+     * @param	offset	the first byte of <i>buf</i> to send.
+     * @param	length	the number of bytes available to send; must be at
+     *			least 1.
+     * @return	the number of bytes accepted.
+     */
+    public default int writeBytes(byte[] buf, int offset, int length) {
+	writeByte(buf[offset]);
+	return 1;
+    }
 }
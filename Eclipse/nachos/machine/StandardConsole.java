@@ -8,6 +8,12 @@ import java.io.IOException;
 
 /**
  * A text-based console that uses System.in and System.out.
+ *
+ * <p>
+ * Besides single bytes, the console can send bursts of up to
+ * <tt>MaxBurst</tt> bytes through <tt>writeBytes()</tt>, like a serial port
+ * with a transmit FIFO. A burst takes as long as a single byte and is written
+ * to the host with a single call.
  */
 public class StandardConsole implements SerialConsole {
     /**
@@ -127,13 +133,34 @@ public class StandardConsole implements SerialConsole {
 	System.out.flush();
     }	
 
+    /**
+     * Write <i>length</i> bytes of <i>buf</i> to the object backing this
+     * console.
+     *
+     * @param	buf	the buffer holding the bytes to write.
+     * @param	offset	the first byte of <i>buf</i> to write.
+     * @param	length	the number of bytes to write.
+     */
+    protected void out(byte[] buf, int offset, int length) {
+	System.out.write(buf, offset, length);
+	System.out.flush();
+    }
+
     private void sendInterrupt() {
-	Lib.assertTrue(outgoingKey != -1);
+	Lib.assertTrue(outgoingKey != -1 || outgoingLength > 0);
 
-	out(outgoingKey);
-	outgoingKey = -1;
+	if (outgoingLength > 0) {
+	    out(outgoing, 0, outgoingLength);
+	    privilege.stats.numConsoleWrites += outgoingLength;
+	    outgoingLength = 0;
+	}
+	else {
+	    out(outgoingKey);
+	    outgoingKey = -1;
+	    privilege.stats.numConsoleWrites++;
+	}
 
-	privilege.stats.numConsoleWrites++;
+	privilege.stats.numConsoleSends++;
 
 	if (sendInterruptHandler != null)
 	    sendInterruptHandler.run();
@@ -146,6 +173,21 @@ public class StandardConsole implements SerialConsole {
 	outgoingKey = value&0xFF;
     }
 
+    public final int writeBytes(byte[] buf, int offset, int length) {
+	Lib.assertTrue(length > 0);
+	Lib.assertTrue(outgoingKey == -1 && outgoingLength == 0);
+
+	int amount = Math.min(length, MaxBurst);
+	System.arraycopy(buf, offset, outgoing, 0, amount);
+	outgoingLength = amount;
+	scheduleSendInterrupt();
+
+	return amount;
+    }
+
+    /** The most bytes <tt>writeBytes()</tt> sends at once. */
+    public static final int MaxBurst = 64;
+
     private Privilege privilege = null;
 
     private Runnable receiveInterrupt;
@@ -156,6 +198,8 @@ public class StandardConsole implements SerialConsole {
 
     private int incomingKey = -1;
     private int outgoingKey = -1;
+    private byte[] outgoing = new byte[MaxBurst];
+    private int outgoingLength = 0;
 
     private boolean prevCarriageReturn = false;
 }
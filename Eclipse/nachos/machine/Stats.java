@@ -25,10 +25,34 @@ public final class Stats {
 //			   + ", writes " + numDiskWrites);
 //	System.out.println("Console I/O: reads " + numConsoleReads
 //			   + ", writes " + numConsoleWrites);
+	if (numConsoleWrites > 0)
+	    System.out.println("Console I/O: reads " + numConsoleReads
+			       + ", writes " + numConsoleWrites
+			       + ", send interrupts " + numConsoleSends);
+	if (numReadCalls + numWriteCalls > 0)
+	    System.out.println("File I/O: read calls " + numReadCalls
+			       + ", write calls " + numWriteCalls
+			       + ", file reads " + numFileReads
+			       + ", file writes " + numFileWrites
+			       + ", bytes read " + numFileBytesRead
+			       + ", bytes written " + numFileBytesWritten);
+	if (numForks > 0)
+	    System.out.println("Fork: forks " + numForks
+			       + ", copy-on-write copies " + numCopyOnWrites);
 	System.out.println("Paging: page faults " + numPageFaults
 			   + ", TLB misses " + numTLBMisses
 			   + ", total memory access: " + numMemoryAccess
 			   + ", memory access per page fault: " + numMemoryAccess/numPageFaults);
+	System.out.println("Demand loading: pages read from executables "
+			   + numCoffPageLoads + ", clean pages dropped "
+			   + numCleanPagesDropped);
+	if (numCoffCacheHits + numCoffCacheMisses > 0)
+	    System.out.println("Executable headers: parsed " + numCoffCacheMisses
+			       + ", reused " + numCoffCacheHits);
+	if (numTextCacheHits + numTextCacheMisses > 0)
+	    System.out.println("Text page cache: hits " + numTextCacheHits
+			       + ", misses " + numTextCacheMisses
+			       + ", evictions " + numTextCacheEvictions);
 //	System.out.println("Network I/O: received " + numPacketsReceived
 //			   + ", sent " + numPacketsSent);
 	System.out.println("Physical mem pages: " + Machine.processor().getNumPhysPages()
@@ -67,9 +91,50 @@ public final class Stats {
     public int numConsoleReads = 0;
     /** The total number of characters Nachos has written to the console. */
     public int numConsoleWrites = 0;
+    /** The total number of console sends (each one byte or one burst). */
+    public int numConsoleSends = 0;
+    /** The total number of fork() system calls. */
+    public int numForks = 0;
+    /** The total number of pages copied after being shared by a fork. */
+    public int numCopyOnWrites = 0;
+    /** The total number of read() system calls on (non-console) files. */
+    public int numReadCalls = 0;
+    /** The total number of write() system calls on (non-console) files. */
+    public int numWriteCalls = 0;
+    /**
+     * The total number of reads the kernel made on (non-console) open files
+     * to serve read() system calls, after buffering.
+     */
+    public int numFileReads = 0;
+    /**
+     * The total number of writes the kernel made on (non-console) open files
+     * to serve write() system calls, after buffering.
+     */
+    public int numFileWrites = 0;
+    /** The total number of bytes read from buffered (non-console) files. */
+    public long numFileBytesRead = 0;
+    /** The total number of bytes written to buffered (non-console) files. */
+    public long numFileBytesWritten = 0;
     /** The total number of page faults that have occurred. */
     public int numPageFaults = 0;
     public int numMemoryAccess = 0;
+    /** The total number of program pages read from executables on demand. */
+    public int numCoffPageLoads = 0;
+    /**
+     * The total number of clean program pages evicted by dropping them, to
+     * be read again from the executable, rather than by compressing them.
+     */
+    public int numCleanPagesDropped = 0;
+    /** The total number of executables loaded with headers already parsed. */
+    public int numCoffCacheHits = 0;
+    /** The total number of executables whose headers were read and parsed. */
+    public int numCoffCacheMisses = 0;
+    /** The total number of text page faults served from the text page cache. */
+    public int numTextCacheHits = 0;
+    /** The total number of text page faults that had to read the executable. */
+    public int numTextCacheMisses = 0;
+    /** The total number of pages evicted from the text page cache. */
+    public int numTextCacheEvictions = 0;
     /** The total number of TLB misses that have occurred. */
     public int numTLBMisses = 0;
     /** The total number of packets Nachos has sent to the network. */
@@ -8,10 +8,32 @@ import nachos.threads.*;
 import java.io.File;
 import java.io.RandomAccessFile;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.PrivilegedActionException;
+import java.security.PrivilegedExceptionAction;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  * This class implements a file system that redirects all requests to the host
  * operating system's file system.
+ *
+ * <p>
+ * Unless <tt>StubFileSystem.mapped</tt> is set to false in
+ * <tt>nachos.conf</tt>, open files are memory-mapped, so that most reads and
+ * writes are plain copies instead of a seek and a read or write on the host.
+ * The JDK only sets up about 15 mappings before it needs a class loader, which
+ * the security manager refuses, and from then on files are read and written
+ * without a mapping. So mappings are made sparingly: a file is only mapped
+ * when it is first read, every open handle on a file shares one mapping, and
+ * the mapping is kept after the file is closed, so opening the same file
+ * again (an executable, say) costs nothing.
+ *
+ * <p>
+ * Opening a file with <tt>truncate</tt> set first drops its mapping, since
+ * touching a mapping past the end of its shrunken file would crash the JVM.
  */
 public class StubFileSystem implements FileSystem {
     /**
@@ -24,6 +46,8 @@ public class StubFileSystem implements FileSystem {
     public StubFileSystem(Privilege privilege, File directory) {
 	this.privilege = privilege;
 	this.directory = directory;
+
+	mapped = Config.getBoolean("StubFileSystem.mapped", true);
     }
     
     public OpenFile open(String name, boolean truncate) {
@@ -33,7 +57,10 @@ public class StubFileSystem implements FileSystem {
 	delay();
 	    
 	try {
-	    return new StubOpenFile(name, truncate);
+	    if (mapped)
+		return new MappedOpenFile(name, truncate);
+	    else
+		return new StubOpenFile(name, truncate);
 	}
 	catch (IOException e) {
 	    return null;
@@ -48,9 +75,49 @@ public class StubFileSystem implements FileSystem {
 
 	FileRemover fr = new FileRemover(new File(directory, name));
 	privilege.doPrivileged(fr);
+
+	// open handles keep the old file; a new file by this name is unrelated
+	if (fr.successful)
+	    mappedFiles.remove(name);
 	return fr.successful;
     }
 
+    /**
+     * Called before file <i>name</i> is truncated, so that no open handle
+     * touches its mapping of the old contents.
+     */
+    private void truncating(String name) {
+	Mapping mapping = mappedFiles.get(name);
+	if (mapping == null)
+	    return;
+
+	mapping.map = null;
+	mapping.stale = true;
+	mapping.length = 0;
+    }
+
+    /**
+     * Called after file <i>name</i> was written up to <i>end</i>, so that
+     * mapped handles with an older idea of its length see the new data.
+     */
+    private void written(String name, long end) {
+	Mapping mapping = mappedFiles.get(name);
+	if (mapping != null)
+	    mapping.length = Math.max(mapping.length, end);
+    }
+
+    /**
+     * The mapping of one host file, shared by every mapped handle on it.
+     */
+    private static class Mapping {
+	/** The mapping, or <tt>null</tt> to use plain host I/O. */
+	MappedByteBuffer map = null;
+	/** Whether the file must be mapped again before it is next used. */
+	boolean stale = true;
+	/** The length of the file, which may be past the end of the map. */
+	long length;
+    }
+
     private class FileRemover implements Runnable {
 	public FileRemover(File f) {
 	    this.f = f;
@@ -81,6 +148,9 @@ public class StubFileSystem implements FileSystem {
 	    if (openCount == maxOpenFiles)
 		throw new IOException();
 
+	    if (truncate)
+		truncating(name);
+
 	    privilege.doPrivileged(new Runnable() {
 		public void run() { getRandomAccessFile(f, truncate); }
 	    });
@@ -111,7 +181,8 @@ public class StubFileSystem implements FileSystem {
 		return -1;
 	    
 	    try {
-		delay();
+		if (delayed)
+		    delay();
 
 		file.seek(pos);
 		return Math.max(0, file.read(buf, offset, length));
@@ -126,10 +197,12 @@ public class StubFileSystem implements FileSystem {
 		return -1;
 	    
 	    try {
-		delay();
+		if (delayed)
+		    delay();
 		
 		file.seek(pos);
 		file.write(buf, offset, length);
+		written(getName(), (long) pos + length);
 		return length;
 	    }
 	    catch (IOException e) {
@@ -159,16 +232,250 @@ public class StubFileSystem implements FileSystem {
 	    }
 	}
 
-	private RandomAccessFile file = null;
-	private boolean open = false;
+	protected RandomAccessFile file = null;
+	protected boolean open = false;
+	/** Whether reads and writes take simulated time. */
+	boolean delayed = true;
     }
 
+    /**
+     * A <tt>StubOpenFile</tt> that maps the host file into memory. Reads, and
+     * writes that do not extend the file, copy straight to and from the
+     * mapping. A write that extends the file is a single positional write on
+     * the host, and the mapping is only redone once a read goes past its end,
+     * so the file on the host never holds more than was written.
+     *
+     * <p>
+     * Handles on the same file share its <tt>Mapping</tt>, so when one handle
+     * truncates or extends the file, every other one sees it. A file is only
+     * mapped when it is read, so one that is only written, or still empty,
+     * costs no mapping.
+     */
+    private class MappedOpenFile extends StubOpenFile {
+	MappedOpenFile(String name, boolean truncate) throws IOException {
+	    super(name, truncate);
+
+	    channel = file.getChannel();
+
+	    mapping = mappedFiles.get(name);
+	    if (mapping == null) {
+		mapping = new Mapping();
+		mappedFiles.put(name, mapping);
+	    }
+	}
+
+	/** Map the whole file as it is now. */
+	private void remap() throws IOException {
+	    final long length = channel.size();
+	    mapping.length = length;
+	    mapping.map = null;
+
+	    // an empty file has nothing to map yet
+	    mapping.stale = mapped && length == 0;
+	    if (!mapped || length == 0)
+		return;
+
+	    Lib.debug(dbgStub, "mapping " + length + " bytes of " + getName());
+	    try {
+		mapping.map = (MappedByteBuffer) privilege.doPrivileged(
+		    new PrivilegedExceptionAction<Object>() {
+			public Object run() throws IOException {
+			    return channel.map(FileChannel.MapMode.READ_WRITE,
+					       0, length);
+			}
+		    });
+	    }
+	    catch (PrivilegedActionException e) {
+		Exception cause = e.getException();
+		if (cause instanceof IOException)
+		    throw (IOException) cause;
+		if (!(cause instanceof SecurityException))
+		    throw (RuntimeException) cause;
+
+		// the JDK sets up mappings with code that needs a class loader,
+		// and the security manager denies it
+		Lib.debug(dbgStub, "cannot map " + getName() + " (" + cause
+			  + "), no longer mapping files");
+		mapped = false;
+	    }
+	}
+
+	public int read(int pos, byte[] buf, int offset, int length) {
+	    if (!open || pos < 0)
+		return -1;
+
+	    try {
+		if (delayed)
+		    delay();
+
+		if (mapping.stale)
+		    remap();
+		MappedByteBuffer map = mapping.map;
+		if (map != null && pos + length > map.capacity()
+		    && map.capacity() < mapping.length) {
+		    remap();
+		    map = mapping.map;
+		}
+
+		if (map == null) {
+		    file.seek(pos);
+		    return Math.max(0, file.read(buf, offset, length));
+		}
+
+		int amount =
+		    (int) Math.min(length, Math.max(0, mapping.length - pos));
+		if (amount > 0) {
+		    map.position(pos);
+		    map.get(buf, offset, amount);
+		}
+		return amount;
+	    }
+	    catch (IOException e) {
+		return -1;
+	    }
+	}
+
+	public int write(int pos, byte[] buf, int offset, int length) {
+	    if (!open || pos < 0)
+		return -1;
+
+	    try {
+		if (delayed)
+		    delay();
+
+		// a stale mapping has no map, and a write does not need one
+		MappedByteBuffer map = mapping.map;
+		if (map != null && pos + length <= map.capacity()) {
+		    map.position(pos);
+		    map.put(buf, offset, length);
+		}
+		else {
+		    ByteBuffer src = ByteBuffer.wrap(buf, offset, length);
+		    for (long p=pos; src.hasRemaining(); )
+			p += channel.write(src, p);
+		    mapping.length = Math.max(mapping.length, (long) pos + length);
+		}
+		return length;
+	    }
+	    catch (IOException e) {
+		return -1;
+	    }
+	}
+
+	public int length() {
+	    if (mapping.map == null)
+		return super.length();
+
+	    return (int) mapping.length;
+	}
+
+	private FileChannel channel;
+	private Mapping mapping;
+    }
+
+    /**
+     * Tests whether the memory-mapped files work, including growing a file
+     * past its mapping and truncating it under a mapping. The test creates
+     * a scratch file in the test directory, so it only runs if
+     * <tt>StubFileSystem.selfTest</tt> is set in <tt>nachos.conf</tt>. If
+     * <tt>StubFileSystem.benchmarkBytes</tt> is set, it also times sequential
+     * reads of a file that large through both kinds of open file.
+     */
+    public void selfTest() {
+	int benchmarkBytes = Config.getInteger("StubFileSystem.benchmarkBytes", 0);
+	if (!Config.getBoolean("StubFileSystem.selfTest", false)
+	    && benchmarkBytes == 0)
+	    return;
+
+	final String name = "stubfs.selftest";
+	byte[] data = new byte[10000];
+	for (int i=0; i<data.length; i++)
+	    data[i] = (byte) (i*13);
+
+	try {
+	    OpenFile file = new MappedOpenFile(name, true);
+	    // grow in pieces, overwriting part of each previous piece
+	    for (int pos=0; pos<data.length; pos+=900)
+		Lib.assertTrue(file.write(Math.max(0, pos-100), data,
+					  Math.max(0, pos-100),
+					  Math.min(1000, data.length-pos+100)) > 0);
+	    Lib.assertTrue(file.length() == data.length);
+
+	    OpenFile other = new StubOpenFile(name, false);
+	    byte[] check = new byte[data.length];
+	    Lib.assertTrue(other.read(0, check, 0, check.length) == data.length);
+	    Lib.assertTrue(file.read(data.length-10, check, 0, 100) == 10);
+	    other.close();
+	    file.close();
+
+	    for (int i=0; i<data.length-10; i++)
+		Lib.assertTrue(check[i+10] == data[i+10]);
+
+	    // truncate the file under a live mapping, then grow it again
+	    file = new MappedOpenFile(name, false);
+	    other = new MappedOpenFile(name, true);
+	    Lib.assertTrue(file.length() == 0);
+	    Lib.assertTrue(other.write(0, data, 0, 10) == 10);
+	    Lib.assertTrue(file.read(0, check, 0, check.length) == 10);
+	    other.close();
+	    file.close();
+
+	    if (benchmarkBytes > 0) {
+		file = new StubOpenFile(name, true);
+		byte[] chunk = new byte[Math.min(benchmarkBytes, 1<<16)];
+		for (int pos=0; pos<benchmarkBytes; pos+=chunk.length)
+		    file.write(pos, chunk, 0,
+			       Math.min(chunk.length, benchmarkBytes-pos));
+		file.close();
+
+		benchmark("RandomAccessFile", new StubOpenFile(name, false));
+		benchmark("mapped", new MappedOpenFile(name, false));
+	    }
+	}
+	catch (IOException e) {
+	    Lib.assertNotReached("stub file system self test: " + e);
+	}
+
+	remove(name);
+    }
+
+    /**
+     * Time page-sized sequential reads of <i>file</i>, without the simulated
+     * delay, so that only the host side is measured.
+     */
+    private void benchmark(String kind, StubOpenFile file) {
+	file.delayed = false;
+
+	byte[] buf = new byte[Processor.pageSize];
+	int length = file.length();
+	int passes = 4;
+
+	long start = System.nanoTime();
+	for (int i=0; i<passes; i++) {
+	    for (int pos=0; pos<length; pos+=buf.length)
+		file.read(pos, buf, 0, buf.length);
+	}
+	long elapsed = System.nanoTime() - start;
+	file.close();
+
+	int reads = passes * Lib.divRoundUp(length, buf.length);
+	System.out.println("stub file system benchmark: " + kind + ", "
+			   + reads + " page reads in " + (elapsed / 1000000)
+			   + " ms, " + (elapsed / reads) + " ns/read");
+    }
+
+    /** The mapping of every file opened with mapping on, by name. */
+    private Map<String, Mapping> mappedFiles = new HashMap<String, Mapping>();
+
     private int openCount = 0;
     private static final int maxOpenFiles = 16;
+    private boolean mapped;
     
     private Privilege privilege;
     private File directory;
 
+    private static final char dbgStub = 's';
+
     private static boolean checkName(String name) {
 	char[] chars = name.toCharArray();
 
@@ -6,6 +6,8 @@ import nachos.security.*;
 import nachos.threads.KThread;
 
 import java.util.Vector;
+import java.util.concurrent.locks.LockSupport;
+import java.lang.reflect.Method;
 import java.security.PrivilegedAction;
 
 /**
@@ -14,6 +16,14 @@ import java.security.PrivilegedAction;
  * object.
  *
  * <p>
+ * The kind of JVM thread is chosen by the <tt>TCB.backend</tt> key in
+ * <tt>nachos.conf</tt>. <tt>platform</tt> (the default) uses ordinary
+ * threads, whose stack size can be set with <tt>TCB.stackSize</tt>.
+ * <tt>virtual</tt> uses virtual threads where the JVM provides them, which
+ * are much cheaper to create and let a simulation run thousands of threads;
+ * raise <tt>TCB.maxThreads</tt> to allow that many.
+ *
+ * <p>
  * Do not use any methods in <tt>java.lang.Thread</tt>, as they are not
  * compatible with the TCB API. Most <tt>Thread</tt> methods will either crash
  * Nachos or have no useful effect.
@@ -40,6 +50,19 @@ public final class TCB {
     public static void givePrivilege(Privilege privilege) {
 	TCB.privilege = privilege;
 	privilege.tcb = new TCBPrivilege();
+
+	threadLimit = Config.getInteger("TCB.maxThreads", maxThreads);
+	stackSize = Config.getInteger("TCB.stackSize", 0);
+	Lib.assertTrue(threadLimit > 0 && stackSize >= 0);
+
+	parkHandoff = Config.getBoolean("TCB.parkHandoff", true);
+
+	String backend = Config.getString("TCB.backend", "platform");
+	if (backend.equals("virtual"))
+	    findVirtualThreadBuilder();
+	else
+	    Lib.assertTrue(backend.equals("platform"),
+			   "unknown TCB.backend: " + backend);
     }
     
     /**
@@ -66,7 +89,7 @@ public final class TCB {
 	/* Make sure there aren't too many running TCBs already. This
 	 * limitation exists in an effort to prevent wild thread usage.
 	 */
-	Lib.assertTrue(runningThreads.size() < maxThreads);
+	Lib.assertTrue(runningThreads.size() < threadLimit);
 
 	isFirstTCB = (currentTCB == null);
 
@@ -94,7 +117,7 @@ public final class TCB {
 		};
 
 	    privilege.doPrivileged(new Runnable() {
-		    public void run() { javaThread = new Thread(tcbTarget); }
+		    public void run() { javaThread = newJavaThread(tcbTarget); }
 		});
 
 	    /* The Java thread hasn't yet started, but we need to get it
@@ -207,6 +230,44 @@ public final class TCB {
 		Thread.currentThread() == currentTCB.javaThread);
     }
 
+    /**
+     * Create an unstarted JVM thread to run <i>target</i>, using the backend
+     * selected in <tt>givePrivilege()</tt>.
+     */
+    private static Thread newJavaThread(Runnable target) {
+	if (virtualThreadBuilder != null) {
+	    try {
+		return (Thread) unstartedMethod.invoke(virtualThreadBuilder,
+						       target);
+	    }
+	    catch (Exception e) {
+		Lib.assertNotReached("cannot create virtual thread: " + e);
+	    }
+	}
+
+	return new Thread(null, target, "TCB", stackSize);
+    }
+
+    /**
+     * Look up <tt>Thread.ofVirtual()</tt> reflectively, so that Nachos still
+     * builds and runs on JVMs that predate virtual threads. If they are not
+     * available, fall back to platform threads.
+     */
+    private static void findVirtualThreadBuilder() {
+	try {
+	    Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+
+	    unstartedMethod = builderClass.getMethod("unstarted", Runnable.class);
+	    virtualThreadBuilder = Thread.class.getMethod("ofVirtual").invoke(null);
+	}
+	catch (Exception e) {
+	    System.out.print("\nTCB: virtual threads not supported by this JVM,"
+			     + " using platform threads\n");
+	    virtualThreadBuilder = null;
+	    unstartedMethod = null;
+	}
+    }
+
     private void threadroot() {
 	// this should be running the current thread
 	Lib.assertTrue(javaThread == Thread.currentThread());
@@ -280,27 +341,53 @@ public final class TCB {
     }
 
     /**
-     * Waits on the monitor bound to this TCB until its <tt>running</tt> flag
-     * is set to <tt>true</tt>. <tt>waitForInterrupt()</tt> is used whenever a
-     * TCB needs to go to wait for its turn to run. This includes the ping-pong
-     * process of starting and destroying TCBs, as well as in context switching
-     * from this TCB to another. We don't rely on <tt>currentTCB</tt>, since it
-     * is updated by <tt>contextSwitch()</tt> before we get called.
+     * Waits until this TCB's <tt>running</tt> flag is set to <tt>true</tt>.
+     * <tt>waitForInterrupt()</tt> is used whenever a TCB needs to go to wait
+     * for its turn to run. This includes the ping-pong process of starting
+     * and destroying TCBs, as well as in context switching from this TCB to
+     * another. We don't rely on <tt>currentTCB</tt>, since it is updated by
+     * <tt>contextSwitch()</tt> before we get called.
+     *
+     * <p>
+     * With <tt>parkHandoff</tt> the thread parks itself instead of waiting on
+     * a monitor. Since <tt>running</tt> is volatile, and is always set before
+     * the matching <tt>unpark()</tt>, a wakeup cannot be lost: either we see
+     * the flag, or <tt>park()</tt> returns at once on the pending permit.
      */
-    private synchronized void waitForInterrupt() {
-	while (!running) {
-	    try { wait(); }
-	    catch (InterruptedException e) { }
+    private void waitForInterrupt() {
+	if (parkHandoff) {
+	    while (!running)
+		LockSupport.park(this);
+	}
+	else {
+	    waitOnMonitor();
 	}
     }
 
     /**
      * Wake up this TCB by setting its <tt>running</tt> flag to <tt>true</tt>
-     * and signalling the monitor bound to it. Used in the ping-pong process of
-     * starting and destroying TCBs, as well as in context switching to this
-     * TCB.
+     * and unparking its thread, or signalling the monitor bound to it. Used in
+     * the ping-pong process of starting and destroying TCBs, as well as in
+     * context switching to this TCB.
      */
-    private synchronized void interrupt() {
+    private void interrupt() {
+	if (parkHandoff) {
+	    running = true;
+	    LockSupport.unpark(javaThread);
+	}
+	else {
+	    notifyMonitor();
+	}
+    }
+
+    private synchronized void waitOnMonitor() {
+	while (!running) {
+	    try { wait(); }
+	    catch (InterruptedException e) { }
+	}
+    }
+
+    private synchronized void notifyMonitor() {
 	running = true;
 	notify();
     }
@@ -327,11 +414,39 @@ public final class TCB {
     }
 
     /**
-     * The maximum number of started, non-destroyed TCB's that can be in
-     * existence.
+     * The default maximum number of started, non-destroyed TCB's that can be
+     * in existence.
      */
     public static final int maxThreads = 250;
 
+    /**
+     * The limit actually enforced by <tt>start(Runnable)</tt>, from
+     * <tt>TCB.maxThreads</tt> in <tt>nachos.conf</tt>. Defaults to
+     * <tt>maxThreads</tt>.
+     */
+    private static int threadLimit = maxThreads;
+
+    /**
+     * Requested stack size of each platform thread in bytes, or 0 for the JVM
+     * default.
+     */
+    private static int stackSize = 0;
+
+    /**
+     * A <tt>Thread.Builder.OfVirtual</tt> and its <tt>unstarted()</tt>
+     * method, or <tt>null</tt> if TCBs use platform threads.
+     */
+    private static Object virtualThreadBuilder = null;
+    private static Method unstartedMethod = null;
+
+    /**
+     * <tt>true</tt> to hand control between TCBs with
+     * <tt>LockSupport.park()</tt>/<tt>unpark()</tt>, <tt>false</tt> to use
+     * <tt>wait()</tt>/<tt>notify()</tt> on each TCB's monitor. Set by
+     * <tt>TCB.parkHandoff</tt> in <tt>nachos.conf</tt>.
+     */
+    private static boolean parkHandoff = true;
+
     /**
      * A reference to the currently running TCB. It is initialized to
      * <tt>null</tt> when the <tt>TCB</tt> class is loaded, and then the first
@@ -354,7 +469,7 @@ public final class TCB {
      * on each TCB object. TCB objects are removed only in each of the
      * <tt>catch</tt> clauses of <tt>threadroot()</tt>, one of which is always
      * invoked on thread termination. The maximum number of threads in
-     * <tt>runningThreads</tt> is limited to <tt>maxThreads</tt> by
+     * <tt>runningThreads</tt> is limited to <tt>threadLimit</tt> by
      * <tt>start(Runnable)</tt>. If <tt>threadroot()</tt> drops the number of
      * TCB objects in <tt>runningThreads</tt> to zero, Nachos exits, so once
      * the first TCB is created, this vector is basically never empty.
@@ -388,7 +503,7 @@ public final class TCB {
      * destroying a TCB, this is temporarily true for a thread other than that
      * of the current TCB.
      */
-    private boolean running = false;
+    private volatile boolean running = false;
 
     /**
      * Set to <tt>true</tt> by <tt>destroy()</tt>, so that when
@@ -149,6 +149,7 @@ public class NachosSecurityManager extends SecurityManager {
 	    result = action.run();
 	}
 	catch (Exception e) {
+	    disablePrivilege();
 	    throw new PrivilegedActionException(e);
 	}
 	catch (Throwable e) {
@@ -158,6 +158,10 @@ public abstract class Privilege {
 	 *		MIPS user code.
 	 */
 	public void tick(boolean inKernelMode);
+
+	public int instructionsUntilDue();
+
+	public void tickInstructions(int count);
     }
 
     /**
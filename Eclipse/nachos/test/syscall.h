@@ -25,6 +25,7 @@
 #define syscallMmap		10
 #define syscallConnect		11
 #define syscallAccept		12
+#define syscallFork		13
 
 /* Don't want the assembler to see C code, but start.s includes syscall.h. */
 #ifndef START_S
@@ -109,6 +110,17 @@ int exec(char *file, int argc, char *argv[]);
  */
 int join(int processID, int *status);
 
+/**
+ * Create a new process running a copy of the current one, with the same open
+ * files, that carries on from this call. Memory is shared until one of the
+ * two processes writes to it, so forking is cheap. The new process is a child
+ * of the current process, and can be joined.
+ *
+ * Returns the child's process ID in the parent, and 0 in the child. On error,
+ * returns -1 and no child is created.
+ */
+int fork();
+
 /* FILE MANAGEMENT SYSCALLS: creat, open, read, write, close, unlink
  *
  * A file descriptor is a small, non-negative integer that refers to a file on
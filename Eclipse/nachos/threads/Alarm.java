@@ -5,6 +5,12 @@ import nachos.machine.*;
 /**
  * Uses the hardware timer to provide preemption, and to allow threads to sleep
  * until a certain time.
+ *
+ * <p>
+ * Sleeping threads are blocked, not spinning, and are kept in a binary min-heap
+ * ordered by wake time (then by arrival), stored in parallel arrays. A timer
+ * interrupt looks only at the top of the heap, so sleepers cost nothing until
+ * they are due.
  */
 public class Alarm {
     /**
@@ -24,10 +30,16 @@ public class Alarm {
      * The timer interrupt handler. This is called by the machine's timer
      * periodically (approximately every 500 clock ticks). Causes the current
      * thread to yield, forcing a context switch if there is another thread
-     * that should be run.
+     * that should be run, unless the scheduler says its time slice has not
+     * run out yet.
      */
     public void timerInterrupt() {
-	KThread.currentThread().yield();
+	long time = Machine.timer().getTime();
+	while (numSleepers > 0 && wakeTimes[0] <= time)
+	    removeFirst().ready();
+
+	if (ThreadedKernel.scheduler.timerTick(KThread.currentThread()))
+	    KThread.currentThread().yield();
     }
 
     /**
@@ -45,9 +57,135 @@ public class Alarm {
      * @see	nachos.machine.Timer#getTime()
      */
     public void waitUntil(long x) {
-	// for now, cheat just to get something working (busy waiting is bad)
 	long wakeTime = Machine.timer().getTime() + x;
-	while (wakeTime > Machine.timer().getTime())
-	    KThread.yield();
+	if (x <= 0)
+	    return;
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	add(wakeTime, KThread.currentThread());
+	KThread.sleep();
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Tests whether this module is working. Threads go to sleep with
+     * scrambled delays; they must wake up no earlier than they asked, and
+     * never while a thread that asked for an earlier time is still asleep.
+     * The order in which woken threads then run is up to the scheduler.
+     */
+    public static void selfTest() {
+	final Alarm alarm = ThreadedKernel.alarm;
+	final Semaphore done = new Semaphore(0);
+	final int numThreads = 10;
+	final long[] deadlines = new long[numThreads];
+
+	for (int i=0; i<numThreads; i++) {
+	    final int which = i;
+	    final long delay = 500 + (i*7 % numThreads) * 300;
+	    new KThread(new Runnable() {
+		    public void run() {
+			deadlines[which] = Machine.timer().getTime() + delay;
+			alarm.waitUntil(delay);
+			Lib.assertTrue(Machine.timer().getTime() >=
+				       deadlines[which]);
+			Lib.assertTrue(alarm.numSleepers == 0 ||
+				       alarm.wakeTimes[0] > deadlines[which]);
+			done.V();
+		    }
+		}).setName("alarm test " + i).fork();
+	}
+
+	for (int i=0; i<numThreads; i++)
+	    done.P();
+    }
+
+    private void add(long wakeTime, KThread thread) {
+	if (numSleepers == wakeTimes.length) {
+	    int newLength = wakeTimes.length * 2;
+	    long[] newWakeTimes = new long[newLength];
+	    long[] newSequence = new long[newLength];
+	    KThread[] newThreads = new KThread[newLength];
+	    System.arraycopy(wakeTimes, 0, newWakeTimes, 0, numSleepers);
+	    System.arraycopy(sequence, 0, newSequence, 0, numSleepers);
+	    System.arraycopy(threads, 0, newThreads, 0, numSleepers);
+	    wakeTimes = newWakeTimes;
+	    sequence = newSequence;
+	    threads = newThreads;
+	}
+
+	long seq = nextSequence++;
+
+	// sift up
+	int i = numSleepers++;
+	while (i > 0) {
+	    int parent = (i-1) / 2;
+	    if (!before(wakeTime, seq, parent))
+		break;
+	    move(parent, i);
+	    i = parent;
+	}
+	wakeTimes[i] = wakeTime;
+	sequence[i] = seq;
+	threads[i] = thread;
     }
+
+    private KThread removeFirst() {
+	KThread first = threads[0];
+
+	int last = --numSleepers;
+	long wakeTime = wakeTimes[last];
+	long seq = sequence[last];
+	KThread thread = threads[last];
+	threads[last] = null;
+
+	// sift the last entry down from the root
+	int i = 0;
+	if (numSleepers > 0) {
+	    while (true) {
+		int child = 2*i + 1;
+		if (child >= numSleepers)
+		    break;
+		if (child+1 < numSleepers &&
+		    before(wakeTimes[child+1], sequence[child+1], child))
+		    child++;
+		if (!before(wakeTimes[child], sequence[child], wakeTime, seq))
+		    break;
+		move(child, i);
+		i = child;
+	    }
+	    wakeTimes[i] = wakeTime;
+	    sequence[i] = seq;
+	    threads[i] = thread;
+	}
+
+	return first;
+    }
+
+    /** Return <tt>true</tt> if (wakeTime, seq) orders before entry <i>j</i>. */
+    private boolean before(long wakeTime, long seq, int j) {
+	return before(wakeTime, seq, wakeTimes[j], sequence[j]);
+    }
+
+    private static boolean before(long wakeTime1, long seq1,
+				  long wakeTime2, long seq2) {
+	if (wakeTime1 != wakeTime2)
+	    return wakeTime1 < wakeTime2;
+	return seq1 < seq2;
+    }
+
+    private void move(int from, int to) {
+	wakeTimes[to] = wakeTimes[from];
+	sequence[to] = sequence[from];
+	threads[to] = threads[from];
+    }
+
+    /** Wake times of the sleeping threads, a min-heap. */
+    private long[] wakeTimes = new long[16];
+    /** Arrival order, to break ties between equal wake times. */
+    private long[] sequence = new long[16];
+    private KThread[] threads = new KThread[16];
+    private int numSleepers = 0;
+    private long nextSequence = 0;
 }
@@ -0,0 +1,153 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A bounded buffer of 32-bit messages. Unlike a <tt>Communicator</tt>, a
+ * speaker does not wait for a listener to take its word; it only waits when
+ * the buffer is full, and a listener only waits when it is empty. Words are
+ * received in the order they were sent.
+ *
+ * <p>
+ * Words can also be moved in batches. A batch call transfers as many words as
+ * fit in one go, and only then wakes a single waiting partner; a woken thread
+ * that finds more work than it needs passes the wakeup on, so threads are
+ * never woken all at once.
+ *
+ * @see	nachos.threads.Communicator
+ */
+public class BoundedCommunicator {
+    /**
+     * Allocate a new bounded buffer.
+     *
+     * @param	capacity	the number of words the buffer can hold.
+     */
+    public BoundedCommunicator(int capacity) {
+	Lib.assertTrue(capacity > 0);
+
+	words = new int[capacity];
+    }
+
+    /**
+     * Add <i>word</i> to the buffer, waiting while it is full.
+     *
+     * @param	word	the integer to transfer.
+     */
+    public void speak(int word) {
+	lock.acquire();
+
+	while (count == words.length)
+	    notFull.sleep();
+
+	put(word);
+	notEmpty.wake();
+	if (count < words.length)
+	    notFull.wake();
+
+	lock.release();
+    }
+
+    /**
+     * Add <i>length</i> words from <i>data</i>, starting at <i>offset</i>,
+     * to the buffer, waiting whenever it is full.
+     *
+     * @param	data	the array holding the words.
+     * @param	offset	the first word to send.
+     * @param	length	the number of words to send.
+     */
+    public void speak(int[] data, int offset, int length) {
+	Lib.assertTrue(offset >= 0 && length >= 0 &&
+		       offset + length <= data.length);
+
+	lock.acquire();
+
+	while (length > 0) {
+	    while (count == words.length)
+		notFull.sleep();
+
+	    while (length > 0 && count < words.length) {
+		put(data[offset++]);
+		length--;
+	    }
+
+	    notEmpty.wake();
+	}
+	if (count < words.length)
+	    notFull.wake();
+
+	lock.release();
+    }
+
+    /**
+     * Remove and return the oldest word in the buffer, waiting while it is
+     * empty.
+     *
+     * @return	the integer transferred.
+     */
+    public int listen() {
+	lock.acquire();
+
+	while (count == 0)
+	    notEmpty.sleep();
+
+	int word = take();
+	notFull.wake();
+	if (count > 0)
+	    notEmpty.wake();
+
+	lock.release();
+	return word;
+    }
+
+    /**
+     * Remove between 1 and <i>length</i> words from the buffer into
+     * <i>data</i>, starting at <i>offset</i>. Waits only if the buffer is
+     * empty.
+     *
+     * @param	data	the array to store the words in.
+     * @param	offset	the first element of <i>data</i> to store into.
+     * @param	length	the most words to receive.
+     * @return	the number of words received.
+     */
+    public int listen(int[] data, int offset, int length) {
+	Lib.assertTrue(offset >= 0 && length > 0 &&
+		       offset + length <= data.length);
+
+	lock.acquire();
+
+	while (count == 0)
+	    notEmpty.sleep();
+
+	int received = 0;
+	while (received < length && count > 0)
+	    data[offset + received++] = take();
+
+	notFull.wake();
+	if (count > 0)
+	    notEmpty.wake();
+
+	lock.release();
+	return received;
+    }
+
+    private void put(int word) {
+	words[(head + count) % words.length] = word;
+	count++;
+    }
+
+    private int take() {
+	int word = words[head];
+	head = (head + 1) % words.length;
+	count--;
+	return word;
+    }
+
+    private Lock lock = new Lock();
+    private Condition2 notFull = new Condition2(lock);
+    private Condition2 notEmpty = new Condition2(lock);
+
+    /** Ring buffer of <tt>count</tt> words starting at <tt>head</tt>. */
+    private int[] words;
+    private int head = 0;
+    private int count = 0;
+}
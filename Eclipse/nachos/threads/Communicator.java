@@ -8,6 +8,14 @@ import nachos.machine.*;
  * and multiple threads can be waiting to <i>listen</i>. But there should never
  * be a time when both a speaker and a listener are waiting, because the two
  * threads can be paired off at this point.
+ *
+ * <p>
+ * The word is handed over through a single slot. Speakers queue for the
+ * slot, the speaker holding it waits until a listener empties it, and every
+ * step wakes exactly one partner, never a whole queue. Exchanging a word
+ * allocates nothing.
+ *
+ * @see	nachos.threads.BoundedCommunicator
  */
 public class Communicator {
     /**
@@ -27,6 +35,25 @@ public class Communicator {
      * @param	word	the integer to transfer.
      */
     public void speak(int word) {
+	lock.acquire();
+
+	while (speakerActive)
+	    speakerQueue.sleep();
+
+	// the slot is ours until a listener has taken the word
+	speakerActive = true;
+	slot = word;
+	slotFull = true;
+	listenerQueue.wake();
+
+	while (slotFull)
+	    handoff.sleep();
+
+	// let the next speaker in
+	speakerActive = false;
+	speakerQueue.wake();
+
+	lock.release();
     }
 
     /**
@@ -36,6 +63,125 @@ public class Communicator {
      * @return	the integer transferred.
      */    
     public int listen() {
-	return 0;
+	lock.acquire();
+
+	while (!slotFull)
+	    listenerQueue.sleep();
+
+	int word = slot;
+	slotFull = false;
+	handoff.wake();
+
+	lock.release();
+	return word;
+    }
+
+    /**
+     * Tests whether this module is working. Several speakers and listeners
+     * exchange words, and every word must be received exactly once. If
+     * <tt>Communicator.benchmarkWords</tt> is set in <tt>nachos.conf</tt>,
+     * also measures throughput of this class and of
+     * <tt>BoundedCommunicator</tt> with that many words.
+     */
+    public static void selfTest() {
+	long[] result = exchange(new Communicator(), null, 4, 4, 50);
+	Lib.assertTrue(result[0] == 4*50 && result[1] == expectedSum(4*50));
+
+	BoundedCommunicator buffer = new BoundedCommunicator(8);
+	result = exchange(null, buffer, 4, 4, 50);
+	Lib.assertTrue(result[0] == 4*50 && result[1] == expectedSum(4*50));
+
+	int benchmarkWords = Config.getInteger("Communicator.benchmarkWords", 0);
+	if (benchmarkWords > 0) {
+	    benchmark("communicator", new Communicator(), null, benchmarkWords);
+	    benchmark("bounded buffer", null, new BoundedCommunicator(64),
+		      benchmarkWords);
+	}
+    }
+
+    private static void benchmark(String name, Communicator communicator,
+				  BoundedCommunicator buffer, int words) {
+	int threads = 16;
+	int wordsPerThread = Math.max(1, words / threads);
+
+	long start = System.nanoTime();
+	exchange(communicator, buffer, threads, threads, wordsPerThread);
+	long elapsed = System.nanoTime() - start;
+
+	long total = (long) threads * wordsPerThread;
+	System.out.println(name + " benchmark: " + total + " words, "
+			   + threads + " speakers, " + threads + " listeners, "
+			   + (elapsed / 1000000) + " ms, "
+			   + (total * 1000000000L / Math.max(1, elapsed))
+			   + " words/s");
     }
+
+    /**
+     * Run <i>speakers</i> threads each speaking <i>wordsEach</i> distinct
+     * words and the same number of listeners, through <i>communicator</i>
+     * or, if that is <tt>null</tt>, through <i>buffer</i>. Returns the
+     * number of words received and their sum.
+     */
+    private static long[] exchange(final Communicator communicator,
+				   final BoundedCommunicator buffer,
+				   int speakers, int listeners,
+				   final int wordsEach) {
+	final Semaphore done = new Semaphore(0);
+	final long[] result = new long[2];
+	final int totalWords = speakers * wordsEach;
+
+	for (int i=0; i<speakers; i++) {
+	    final int first = i * wordsEach;
+	    new KThread(new Runnable() {
+		    public void run() {
+			for (int w=first; w<first+wordsEach; w++) {
+			    if (communicator != null)
+				communicator.speak(w);
+			    else
+				buffer.speak(w);
+			}
+			done.V();
+		    }
+		}).setName("speaker " + i).fork();
+	}
+
+	for (int i=0; i<listeners; i++) {
+	    // split the words as evenly as possible among the listeners
+	    final int count = totalWords / listeners +
+		(i < totalWords % listeners ? 1 : 0);
+	    new KThread(new Runnable() {
+		    public void run() {
+			for (int n=0; n<count; n++) {
+			    int word = (communicator != null) ?
+				communicator.listen() : buffer.listen();
+			    result[0]++;
+			    result[1] += word;
+			}
+			done.V();
+		    }
+		}).setName("listener " + i).fork();
+	}
+
+	for (int i=0; i<speakers+listeners; i++)
+	    done.P();
+
+	return result;
+    }
+
+    private static long expectedSum(int words) {
+	return (long) words * (words-1) / 2;
+    }
+
+    private Lock lock = new Lock();
+    /** Speakers waiting for the slot to be free. */
+    private Condition2 speakerQueue = new Condition2(lock);
+    /** Listeners waiting for a word. */
+    private Condition2 listenerQueue = new Condition2(lock);
+    /** The speaker holding the slot, waiting for a listener to take it. */
+    private Condition2 handoff = new Condition2(lock);
+
+    private int slot;
+    /** Whether a speaker is between filling the slot and its handoff. */
+    private boolean speakerActive = false;
+    private boolean slotFull = false;
 }
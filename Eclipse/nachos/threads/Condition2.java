@@ -7,7 +7,17 @@ import nachos.machine.*;
  * synchronization.
  *
  * <p>
- * You must implement this.
+ * Sleeping threads wait directly on a scheduler thread queue, so unlike
+ * <tt>Condition</tt> no semaphore is allocated per <tt>sleep()</tt>.
+ *
+ * <p>
+ * Since the waker holds the lock, a woken thread could not run anyway until
+ * the lock is released. So instead of readying it, <tt>wake()</tt> and
+ * <tt>wakeAll()</tt> move it straight onto the lock's wait queue, and it is
+ * readied by <tt>Lock.release()</tt> already holding the lock. A broadcast
+ * thus hands the lock from one thread to the next instead of readying every
+ * thread only to have all but one of them block again. Waking a condition
+ * nobody sleeps on does not even disable interrupts.
  *
  * @see	nachos.threads.Condition
  */
@@ -33,9 +43,17 @@ public class Condition2 {
     public void sleep() {
 	Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 
+	boolean intStatus = Machine.interrupt().disable();
+
 	conditionLock.release();
+	waiters++;
+	waitQueue.waitForAccess(KThread.currentThread());
+	KThread.sleep();
 
-	conditionLock.acquire();
+	// the waker handed the lock over to this thread
+	Lib.assertTrue(conditionLock.isHeldByCurrentThread());
+
+	Machine.interrupt().restore(intStatus);
     }
 
     /**
@@ -44,6 +62,17 @@ public class Condition2 {
      */
     public void wake() {
 	Lib.assertTrue(conditionLock.isHeldByCurrentThread());
+
+	// sleepers only come and go while holding the lock
+	if (waiters == 0)
+	    return;
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	waiters--;
+	conditionLock.enqueue(waitQueue.nextThread());
+
+	Machine.interrupt().restore(intStatus);
     }
 
     /**
@@ -52,7 +81,84 @@ public class Condition2 {
      */
     public void wakeAll() {
 	Lib.assertTrue(conditionLock.isHeldByCurrentThread());
+
+	if (waiters == 0)
+	    return;
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	for (; waiters > 0; waiters--)
+	    conditionLock.enqueue(waitQueue.nextThread());
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Tests whether this module is working. Several threads sleep on one
+     * condition, and a single <tt>wakeAll()</tt> must let every one of them
+     * return from <tt>sleep()</tt> holding the lock. If
+     * <tt>Condition2.benchmarkPairs</tt> is set in <tt>nachos.conf</tt>, also
+     * times that many <tt>acquire()</tt>/<tt>wake()</tt>/<tt>release()</tt>
+     * sequences with nobody sleeping.
+     */
+    public static void selfTest() {
+	final Lock lock = new Lock();
+	final Condition2 condition = new Condition2(lock);
+	final Semaphore done = new Semaphore(0);
+	final int[] state = new int[2];	// { sleeping, woken }
+	final int numThreads = 5;
+
+	for (int i=0; i<numThreads; i++) {
+	    new KThread(new Runnable() {
+		    public void run() {
+			lock.acquire();
+			state[0]++;
+			condition.sleep();
+			Lib.assertTrue(lock.isHeldByCurrentThread());
+			state[1]++;
+			lock.release();
+			done.V();
+		    }
+		}).setName("condition test " + i).fork();
+	}
+
+	lock.acquire();
+	while (state[0] < numThreads) {
+	    lock.release();
+	    KThread.yield();
+	    lock.acquire();
+	}
+	condition.wakeAll();
+	Lib.assertTrue(state[1] == 0);
+	lock.release();
+
+	for (int i=0; i<numThreads; i++)
+	    done.P();
+	Lib.assertTrue(state[1] == numThreads);
+
+	int benchmarkPairs = Config.getInteger("Condition2.benchmarkPairs", 0);
+	if (benchmarkPairs > 0)
+	    benchmark(benchmarkPairs);
+    }
+
+    private static void benchmark(int pairs) {
+	Lock lock = new Lock();
+	Condition2 condition = new Condition2(lock);
+	long startTicks = Machine.timer().getTime();
+	long start = System.nanoTime();
+	for (int i=0; i<pairs; i++) {
+	    lock.acquire();
+	    condition.wake();
+	    lock.release();
+	}
+	Semaphore.report("acquire/wake/release", pairs,
+			 System.nanoTime() - start,
+			 Machine.timer().getTime() - startTicks);
     }
 
     private Lock conditionLock;
+    /** The number of threads in <tt>waitQueue</tt>. */
+    private int waiters = 0;
+    private ThreadQueue waitQueue =
+	ThreadedKernel.scheduler.newThreadQueue(false);
 }
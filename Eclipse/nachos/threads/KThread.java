@@ -139,8 +139,8 @@ public class KThread {
 	Lib.assertTrue(status == statusNew);
 	Lib.assertTrue(target != null);
 	
-	Lib.debug(dbgThread,
-		  "Forking thread: " + toString() + " Runnable: " + target);
+	if (Lib.test(dbgThread))
+	    System.out.println("Forking thread: " + toString() + " Runnable: " + target);
 
 	boolean intStatus = Machine.interrupt().disable();
 
@@ -162,7 +162,8 @@ public class KThread {
     }
 
     private void begin() {
-	Lib.debug(dbgThread, "Beginning thread: " + toString());
+	if (Lib.test(dbgThread))
+	    System.out.println("Beginning thread: " + toString());
 	
 	Lib.assertTrue(this == currentThread);
 
@@ -182,7 +183,8 @@ public class KThread {
      * delete this thread.
      */
     public static void finish() {
-	Lib.debug(dbgThread, "Finishing thread: " + currentThread.toString());
+	if (Lib.test(dbgThread))
+	    System.out.println("Finishing thread: " + currentThread.toString());
 	
 	Machine.interrupt().disable();
 
@@ -214,7 +216,8 @@ public class KThread {
      * called with interrupts disabled.
      */
     public static void yield() {
-	Lib.debug(dbgThread, "Yielding thread: " + currentThread.toString());
+	if (Lib.test(dbgThread))
+	    System.out.println("Yielding thread: " + currentThread.toString());
 	
 	Lib.assertTrue(currentThread.status == statusRunning);
 	
@@ -239,7 +242,8 @@ public class KThread {
      * scheduled this thread to be destroyed by the next thread to run.
      */
     public static void sleep() {
-	Lib.debug(dbgThread, "Sleeping thread: " + currentThread.toString());
+	if (Lib.test(dbgThread))
+	    System.out.println("Sleeping thread: " + currentThread.toString());
 	
 	Lib.assertTrue(Machine.interrupt().disabled());
 
@@ -254,7 +258,8 @@ public class KThread {
      * ready queue.
      */
     public void ready() {
-	Lib.debug(dbgThread, "Ready thread: " + toString());
+	if (Lib.test(dbgThread))
+	    System.out.println("Ready thread: " + toString());
 	
 	Lib.assertTrue(Machine.interrupt().disabled());
 	Lib.assertTrue(status != statusReady);
@@ -273,7 +278,8 @@ public class KThread {
      * thread.
      */
     public void join() {
-	Lib.debug(dbgThread, "Joining to thread: " + toString());
+	if (Lib.test(dbgThread))
+	    System.out.println("Joining to thread: " + toString());
 
 	Lib.assertTrue(this != currentThread);
 
@@ -303,12 +309,17 @@ public class KThread {
     
     /**
      * Determine the next thread to run, then dispatch the CPU to the thread
-     * using <tt>run()</tt>.
+     * using <tt>run()</tt>. If the idle thread is yielding to itself, nothing
+     * can run until the next interrupt, so simulated time is fast-forwarded
+     * to it.
      */
     private static void runNextThread() {
 	KThread nextThread = readyQueue.nextThread();
-	if (nextThread == null)
+	if (nextThread == null) {
+	    if (currentThread == idleThread)
+		Machine.interrupt().idle();
 	    nextThread = idleThread;
+	}
 
 	nextThread.run();
     }
@@ -340,8 +351,9 @@ public class KThread {
 
 	currentThread.saveState();
 
-	Lib.debug(dbgThread, "Switching from: " + currentThread.toString()
-		  + " to: " + toString());
+	if (Lib.test(dbgThread))
+	    System.out.println("Switching from: " + currentThread.toString()
+			       + " to: " + toString());
 
 	currentThread = this;
 
@@ -355,7 +367,8 @@ public class KThread {
      * <tt>statusRunning</tt> and check <tt>toBeDestroyed</tt>.
      */
     protected void restoreState() {
-	Lib.debug(dbgThread, "Running thread: " + currentThread.toString());
+	if (Lib.test(dbgThread))
+	    System.out.println("Running thread: " + currentThread.toString());
 	
 	Lib.assertTrue(Machine.interrupt().disabled());
 	Lib.assertTrue(this == currentThread);
@@ -390,21 +403,58 @@ public class KThread {
 	    for (int i=0; i<5; i++) {
 		System.out.println("*** thread " + which + " looped "
 				   + i + " times");
-		currentThread.yield();
+		KThread.yield();
 	    }
 	}
 
 	private int which;
     }
 
+    private static class YieldLoop implements Runnable {
+	YieldLoop(int count) {
+	    this.count = count;
+	}
+
+	public void run() {
+	    for (int i=0; i<count; i++)
+		KThread.yield();
+	}
+
+	private int count;
+    }
+
+    /**
+     * Measure context switch latency by ping-ponging two threads through
+     * <i>count</i> yields each, and print the average time per switch.
+     */
+    private static void yieldBenchmark(int count) {
+	KThread other = new KThread(new YieldLoop(count)).setName("yield benchmark");
+	other.fork();
+
+	long start = System.nanoTime();
+	new YieldLoop(count).run();
+	other.join();
+	long elapsed = System.nanoTime() - start;
+
+	System.out.println("yield benchmark: " + (2*count) + " switches in "
+			   + (elapsed / 1000000) + " ms, "
+			   + (elapsed / (2*count)) + " ns/switch");
+    }
+
     /**
-     * Tests whether this module is working.
+     * Tests whether this module is working. If <tt>KThread.benchmarkYields</tt>
+     * is set in <tt>nachos.conf</tt>, also runs a context switch benchmark
+     * with that many yields per thread.
      */
     public static void selfTest() {
 	Lib.debug(dbgThread, "Enter KThread.selfTest");
 	
 	new KThread(new PingTest(1)).setName("forked thread").fork();
 	new PingTest(0).run();
+
+	int benchmarkYields = Config.getInteger("KThread.benchmarkYields", 0);
+	if (benchmarkYields > 0)
+	    yieldBenchmark(benchmarkYields);
     }
 
     private static final char dbgThread = 't';
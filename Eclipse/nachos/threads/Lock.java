@@ -18,6 +18,11 @@ import nachos.machine.*;
  * Also, only the thread that acquired a lock may release it. As with
  * semaphores, the API does not allow you to read the lock state (because the
  * value could change immediately after you read it).
+ *
+ * <p>
+ * An uncontended lock never touches its wait queue. The queue is only told
+ * who holds the lock once a second thread has to wait, which is also the
+ * first moment the holder could receive a priority donation.
  */
 public class Lock {
     /**
@@ -37,11 +42,10 @@ public class Lock {
 	KThread thread = KThread.currentThread();
 
 	if (lockHolder != null) {
-	    waitQueue.waitForAccess(thread);
+	    enqueue(thread);
 	    KThread.sleep();
 	}
 	else {
-	    waitQueue.acquire(thread);
 	    lockHolder = thread;
 	}
 
@@ -58,12 +62,45 @@ public class Lock {
 
 	boolean intStatus = Machine.interrupt().disable();
 
-	if ((lockHolder = waitQueue.nextThread()) != null)
+	if (waiters == 0) {
+	    lockHolder = null;
+	    if (ownerRecorded) {
+		// tell the queue nobody owns it any more
+		waitQueue.nextThread();
+		ownerRecorded = false;
+	    }
+	}
+	else {
+	    waiters--;
+	    lockHolder = waitQueue.nextThread();
 	    lockHolder.ready();
+	}
 	
 	Machine.interrupt().restore(intStatus);
     }
 
+    /**
+     * Make <i>thread</i> wait for this lock, which must be held by someone
+     * else. When the lock is released to <i>thread</i>, it is readied already
+     * holding the lock. Used by <tt>Condition2</tt> to move woken threads
+     * straight onto the lock instead of readying them only to have them
+     * block again in <tt>acquire()</tt>.
+     *
+     * @param	thread	the thread that will wait for this lock.
+     */
+    void enqueue(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+	Lib.assertTrue(lockHolder != null && lockHolder != thread);
+
+	if (!ownerRecorded) {
+	    waitQueue.acquire(lockHolder);
+	    ownerRecorded = true;
+	}
+
+	waiters++;
+	waitQueue.waitForAccess(thread);
+    }
+
     /**
      * Test if the current thread holds this lock.
      *
@@ -73,7 +110,54 @@ public class Lock {
 	return (lockHolder == KThread.currentThread());
     }
 
+    /**
+     * Test if this module is working. A thread that finds the lock busy must
+     * get it only once it is released. If <tt>Lock.benchmarkPairs</tt> is set
+     * in <tt>nachos.conf</tt>, also times that many uncontended
+     * <tt>acquire()</tt>/<tt>release()</tt> pairs.
+     */
+    public static void selfTest() {
+	final Lock lock = new Lock();
+	final Semaphore done = new Semaphore(0);
+	final boolean[] released = new boolean[1];
+
+	lock.acquire();
+	new KThread(new Runnable() {
+		public void run() {
+		    lock.acquire();
+		    Lib.assertTrue(released[0]);
+		    lock.release();
+		    done.V();
+		}
+	    }).setName("lock test").fork();
+
+	KThread.yield();
+	released[0] = true;
+	lock.release();
+	done.P();
+
+	int benchmarkPairs = Config.getInteger("Lock.benchmarkPairs", 0);
+	if (benchmarkPairs > 0)
+	    benchmark(benchmarkPairs);
+    }
+
+    private static void benchmark(int pairs) {
+	Lock lock = new Lock();
+	long startTicks = Machine.timer().getTime();
+	long start = System.nanoTime();
+	for (int i=0; i<pairs; i++) {
+	    lock.acquire();
+	    lock.release();
+	}
+	Semaphore.report("acquire/release", pairs, System.nanoTime() - start,
+			 Machine.timer().getTime() - startTicks);
+    }
+
     private KThread lockHolder = null;
+    /** The number of threads in <tt>waitQueue</tt>. */
+    private int waiters = 0;
+    /** Whether <tt>waitQueue</tt> has been told who holds the lock. */
+    private boolean ownerRecorded = false;
     private ThreadQueue waitQueue =
 	ThreadedKernel.scheduler.newThreadQueue(true);
 }
@@ -2,10 +2,6 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.TreeSet;
-import java.util.HashSet;
-import java.util.Iterator;
-
 /**
  * A scheduler that chooses threads using a lottery.
  *
@@ -25,6 +21,13 @@ import java.util.Iterator;
  * particular, tickets must be transferred through locks, and through joins.
  * Unlike a priority scheduler, these tickets add (as opposed to just taking
  * the maximum).
+ *
+ * <p>
+ * Each queue keeps its waiters' ticket counts in a Fenwick (binary indexed)
+ * tree, so drawing the winner and adjusting one waiter's tickets both take
+ * logarithmic time. A thread's effective ticket count is kept up to date
+ * incrementally: when it changes, the difference is added along the chain of
+ * queue owners, instead of recomputing anything from scratch.
  */
 public class LotteryScheduler extends PriorityScheduler {
     /**
@@ -42,7 +45,391 @@ public class LotteryScheduler extends PriorityScheduler {
      * @return	a new lottery thread queue.
      */
     public ThreadQueue newThreadQueue(boolean transferPriority) {
-	// implement me
-	return null;
+	return new LotteryQueue(transferPriority);
+    }
+
+    public int getPriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+		       
+	return getLotteryState(thread).tickets;
+    }
+
+    public int getEffectivePriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	long tickets = getLotteryState(thread).effectiveTickets;
+	return (int) Math.min(tickets, Integer.MAX_VALUE);
+    }
+
+    public void setPriority(KThread thread, int priority) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+		       
+	Lib.assertTrue(priority >= priorityMinimum &&
+		   priority <= priorityMaximum);
+	
+	getLotteryState(thread).setTickets(priority);
+    }
+
+    public boolean increasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+		       
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	if (priority == priorityMaximum) {
+	    Machine.interrupt().restore(intStatus);
+	    return false;
+	}
+
+	setPriority(thread, priority+1);
+
+	Machine.interrupt().restore(intStatus);
+	return true;
+    }
+
+    public boolean decreasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+		       
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	if (priority == priorityMinimum) {
+	    Machine.interrupt().restore(intStatus);
+	    return false;
+	}
+
+	setPriority(thread, priority-1);
+
+	Machine.interrupt().restore(intStatus);
+	return true;
+    }
+
+    /**
+     * Tests whether this module is working. Builds queues from a private
+     * scheduler instance, so it does not matter which scheduler the kernel
+     * is actually using.
+     */
+    public static void selfTest() {
+	LotteryScheduler s = new LotteryScheduler();
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread[] t = new KThread[3];
+	for (int i=0; i<t.length; i++)
+	    t[i] = new KThread().setName("lottery test " + i);
+
+	// a thread with three times the tickets wins about three times as
+	// often
+	ThreadQueue q = s.newThreadQueue(false);
+	s.setPriority(t[0], 1);
+	s.setPriority(t[1], 3);
+	int wins = 0, draws = 4000;
+	for (int i=0; i<draws; i++) {
+	    q.waitForAccess(t[0]);
+	    q.waitForAccess(t[1]);
+	    if (q.nextThread() == t[1])
+		wins++;
+	    Lib.assertTrue(q.nextThread() != null);
+	    Lib.assertTrue(q.nextThread() == null);
+	}
+	Lib.assertTrue(wins > draws*7/10 && wins < draws*8/10);
+
+	// tickets add up along a chain: t2 waits on b (held by t1), which
+	// waits on a (held by t0)
+	ThreadQueue a = s.newThreadQueue(true);
+	ThreadQueue b = s.newThreadQueue(true);
+	s.setPriority(t[2], 5);
+	a.acquire(t[0]);
+	b.acquire(t[1]);
+	a.waitForAccess(t[1]);
+	b.waitForAccess(t[2]);
+	Lib.assertTrue(s.getEffectivePriority(t[1]) == 8);
+	Lib.assertTrue(s.getEffectivePriority(t[0]) == 9);
+
+	s.setPriority(t[2], 2);
+	Lib.assertTrue(s.getEffectivePriority(t[1]) == 5);
+	Lib.assertTrue(s.getEffectivePriority(t[0]) == 6);
+
+	Lib.assertTrue(a.nextThread() == t[1]);
+	Lib.assertTrue(s.getEffectivePriority(t[0]) == 1);
+	Lib.assertTrue(s.getEffectivePriority(t[1]) == 5);
+	Lib.assertTrue(b.nextThread() == t[2]);
+	Lib.assertTrue(s.getEffectivePriority(t[1]) == 3);
+	Lib.assertTrue(a.nextThread() == null);
+	Lib.assertTrue(b.nextThread() == null);
+	Lib.assertTrue(s.getEffectivePriority(t[1]) == 3);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * The default number of tickets for a new thread.
+     */
+    public static final int priorityDefault = 1;
+    /**
+     * The minimum number of tickets a thread can have.
+     */
+    public static final int priorityMinimum = 1;
+    /**
+     * The maximum number of tickets a thread can have.
+     */
+    public static final int priorityMaximum = Integer.MAX_VALUE;
+
+    /**
+     * Return the lottery state of the specified thread.
+     *
+     * @param	thread	the thread whose lottery state to return.
+     * @return	the lottery state of the specified thread.
+     */
+    protected LotteryState getLotteryState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new LotteryState(thread);
+
+	return (LotteryState) thread.schedulingState;
+    }
+
+    /**
+     * Add <i>delta</i> to the effective tickets of <i>state</i>, and then to
+     * each thread further along the chain of owners it donates to. A deadlock
+     * can make the chain a cycle, so every thread is visited at most once.
+     */
+    private void propagate(LotteryState state, long delta) {
+	propagationStamp++;
+
+	while (state != null && delta != 0 &&
+	       state.propagationStamp != propagationStamp) {
+	    state.propagationStamp = propagationStamp;
+	    state.effectiveTickets += delta;
+
+	    LotteryQueue waitQueue = state.waitingOn;
+	    if (waitQueue == null)
+		break;
+
+	    waitQueue.addTickets(state.slot, delta);
+	    if (!waitQueue.transferPriority)
+		break;
+	    state = waitQueue.owner;
+	}
+    }
+
+    private long propagationStamp = 0;
+
+    /**
+     * A <tt>ThreadQueue</tt> that picks threads by lottery.
+     */
+    protected class LotteryQueue extends ThreadQueue {
+	LotteryQueue(boolean transferPriority) {
+	    this.transferPriority = transferPriority;
+	}
+
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    LotteryState state = getLotteryState(thread);
+	    Lib.assertTrue(state.waitingOn == null);
+
+	    if (numFreeSlots == 0)
+		grow();
+
+	    state.waitingOn = this;
+	    state.slot = freeSlots[--numFreeSlots];
+	    waiters[state.slot] = state;
+	    size++;
+	    addTickets(state.slot, state.effectiveTickets);
+
+	    if (transferPriority)
+		propagate(owner, state.effectiveTickets);
+	}
+
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	    setOwner(getLotteryState(thread));
+	}
+
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    if (size == 0) {
+		setOwner(null);
+		return null;
+	    }
+
+	    LotteryState winner = draw();
+	    remove(winner);
+	    setOwner(winner);
+	    return winner.thread;
+	}
+	
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (int i=0; i<waiters.length; i++) {
+		if (waiters[i] != null)
+		    System.out.print(waiters[i].thread + "(" +
+				     slotTickets[i] + ") ");
+	    }
+	    System.out.println();
+	}
+
+	/**
+	 * Hold a lottery among the waiting threads' tickets and return the
+	 * winner, without removing it.
+	 */
+	private LotteryState draw() {
+	    long ticket;
+	    if (totalTickets <= Integer.MAX_VALUE)
+		ticket = Lib.random((int) totalTickets);
+	    else
+		ticket = (long) (Lib.random() * totalTickets);
+
+	    // find the first slot whose prefix sum exceeds the ticket
+	    int pos = 0;
+	    for (int step=Integer.highestOneBit(tree.length-1); step>0;
+		 step>>=1) {
+		if (pos+step < tree.length && tree[pos+step] <= ticket) {
+		    pos += step;
+		    ticket -= tree[pos];
+		}
+	    }
+
+	    Lib.assertTrue(waiters[pos] != null);
+	    return waiters[pos];
+	}
+
+	private void remove(LotteryState state) {
+	    long tickets = slotTickets[state.slot];
+
+	    addTickets(state.slot, -tickets);
+	    waiters[state.slot] = null;
+	    freeSlots[numFreeSlots++] = state.slot;
+	    size--;
+
+	    state.waitingOn = null;
+	    state.slot = -1;
+
+	    if (transferPriority)
+		propagate(owner, -tickets);
+	}
+
+	/**
+	 * Make <i>newOwner</i> the thread holding the resource guarded by this
+	 * queue, moving the waiters' donation from the previous owner.
+	 */
+	private void setOwner(LotteryState newOwner) {
+	    if (!transferPriority || owner == newOwner)
+		return;
+
+	    propagate(owner, -totalTickets);
+	    owner = newOwner;
+	    propagate(owner, totalTickets);
+	}
+
+	/** Add <i>delta</i> tickets to the waiter in <i>slot</i>. */
+	void addTickets(int slot, long delta) {
+	    slotTickets[slot] += delta;
+	    totalTickets += delta;
+
+	    for (int i=slot+1; i<tree.length; i+=(i & -i))
+		tree[i] += delta;
+	}
+
+	/** Double the number of slots, rebuilding the tree. */
+	private void grow() {
+	    int oldSlots = waiters.length;
+	    int newSlots = oldSlots * 2;
+
+	    LotteryState[] newWaiters = new LotteryState[newSlots];
+	    long[] newSlotTickets = new long[newSlots];
+	    int[] newFreeSlots = new int[newSlots];
+	    System.arraycopy(waiters, 0, newWaiters, 0, oldSlots);
+	    System.arraycopy(slotTickets, 0, newSlotTickets, 0, oldSlots);
+
+	    // all old slots are in use, so only the new ones are free
+	    for (int slot=newSlots-1; slot>=oldSlots; slot--)
+		newFreeSlots[numFreeSlots++] = slot;
+
+	    waiters = newWaiters;
+	    slotTickets = newSlotTickets;
+	    freeSlots = newFreeSlots;
+
+	    tree = new long[newSlots+1];
+	    for (int i=1; i<=newSlots; i++) {
+		tree[i] += slotTickets[i-1];
+		int parent = i + (i & -i);
+		if (parent <= newSlots)
+		    tree[parent] += tree[i];
+	    }
+	}
+
+	/**
+	 * <tt>true</tt> if this queue should transfer tickets from waiting
+	 * threads to the owning thread.
+	 */
+	public boolean transferPriority;
+
+	/** The thread holding the resource, if tickets are transferred. */
+	private LotteryState owner = null;
+
+	/** The waiting thread in each slot, or <tt>null</tt>. */
+	private LotteryState[] waiters = new LotteryState[initialSlots];
+	/** Effective tickets of the waiter in each slot. */
+	private long[] slotTickets = new long[initialSlots];
+	/** Fenwick tree over <tt>slotTickets</tt>, 1-based. */
+	private long[] tree = new long[initialSlots+1];
+	private long totalTickets = 0;
+	private int size = 0;
+
+	private int[] freeSlots = initialFreeSlots();
+	private int numFreeSlots = initialSlots;
+
+	private int[] initialFreeSlots() {
+	    int[] free = new int[initialSlots];
+	    for (int i=0; i<initialSlots; i++)
+		free[i] = initialSlots-1 - i;
+	    return free;
+	}
+    }
+
+    private static final int initialSlots = 8;
+
+    /**
+     * The lottery state of a thread: its own tickets, its effective tickets
+     * including donations, and where it is waiting.
+     *
+     * @see	nachos.threads.KThread#schedulingState
+     */
+    protected class LotteryState {
+	/**
+	 * Allocate a new <tt>LotteryState</tt> object and associate it with the
+	 * specified thread.
+	 *
+	 * @param	thread	the thread this state belongs to.
+	 */
+	public LotteryState(KThread thread) {
+	    this.thread = thread;
+	}
+
+	/**
+	 * Set the number of tickets held by the associated thread itself.
+	 *
+	 * @param	tickets	the new number of tickets.
+	 */
+	public void setTickets(int tickets) {
+	    int delta = tickets - this.tickets;
+	    this.tickets = tickets;
+	    propagate(this, delta);
+	}
+
+	/** The thread with which this object is associated. */
+	protected KThread thread;
+	/** The tickets held by the associated thread itself. */
+	protected int tickets = priorityDefault;
+	/** Own tickets plus everything donated through owned queues. */
+	protected long effectiveTickets = priorityDefault;
+
+	/** The queue this thread is waiting on, or <tt>null</tt>. */
+	private LotteryQueue waitingOn = null;
+	/** This thread's slot in <tt>waitingOn</tt>, or -1. */
+	private int slot = -1;
+	private long propagationStamp = 0;
     }
 }
@@ -0,0 +1,261 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * A multi-level feedback queue scheduler.
+ *
+ * <p>
+ * Every thread sits at one of several levels. Level 0 is the most urgent and
+ * has the shortest time slice; each level below it doubles the slice. The
+ * rules are:
+ *
+ * <ul>
+ * <li>A queue always dequeues from the most urgent non-empty level, and
+ * round-robin within a level.
+ * <li>A thread that uses up its whole time slice drops one level.
+ * <li>A thread that blocks and is woken by an interrupt handler, that is, by
+ * a device completing its I/O or by the timer ending its sleep, rises one
+ * level, so interactive threads stay near the top. A thread woken by another
+ * thread, say when a lock it waits for is released, keeps its level.
+ * <li>Periodically every thread is moved back to level 0, so CPU-bound
+ * threads cannot starve.
+ * </ul>
+ *
+ * <p>
+ * Time slices are measured in timer interrupts. The number of levels, the
+ * level 0 slice and the reset period can be set with the
+ * <tt>MLFQScheduler.levels</tt>, <tt>MLFQScheduler.quantum</tt> and
+ * <tt>MLFQScheduler.resetPeriod</tt> keys in <tt>nachos.conf</tt>.
+ */
+public class MLFQScheduler extends Scheduler {
+    /**
+     * Allocate a new MLFQ scheduler.
+     */
+    public MLFQScheduler() {
+	numLevels = Config.getInteger("MLFQScheduler.levels", 3);
+	baseQuantum = Config.getInteger("MLFQScheduler.quantum", 1);
+	resetPeriod = Config.getInteger("MLFQScheduler.resetPeriod", 50);
+
+	Lib.assertTrue(numLevels > 0 && numLevels < 31);
+	Lib.assertTrue(baseQuantum > 0 && resetPeriod > 0);
+    }
+
+    /**
+     * Allocate a new multi-level thread queue.
+     *
+     * @param	transferPriority	ignored; this scheduler does not donate
+     *					priority.
+     * @return	a new multi-level thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new MultiLevelQueue();
+    }
+
+    /**
+     * Return the level of the specified thread, 0 being the most urgent.
+     */
+    public int getPriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return getThreadState(thread).level;
+    }
+
+    public int getEffectivePriority(KThread thread) {
+	return getPriority(thread);
+    }
+
+    /**
+     * Charge the current thread for one timer interrupt, demote it if its
+     * time slice is used up, and reset every thread to level 0 once per reset
+     * period.
+     */
+    public boolean timerTick(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	if (++ticksSinceReset >= resetPeriod) {
+	    ticksSinceReset = 0;
+	    epoch++;
+	}
+
+	ThreadState state = getThreadState(thread);
+	if (++state.ticksUsed < getQuantum(state.level))
+	    return false;
+
+	state.ticksUsed = 0;
+	if (state.level < numLevels-1)
+	    state.level++;
+	return true;
+    }
+
+    /**
+     * Return the length of a time slice at <i>level</i>, in timer
+     * interrupts.
+     */
+    public int getQuantum(int level) {
+	return baseQuantum << level;
+    }
+
+    /**
+     * Return the scheduling state of the specified thread, first moving it
+     * back to level 0 if a reset happened since it was last looked at.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected ThreadState getThreadState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new ThreadState();
+
+	ThreadState state = (ThreadState) thread.schedulingState;
+	if (state.epoch != epoch) {
+	    state.epoch = epoch;
+	    state.level = 0;
+	    state.ticksUsed = 0;
+	}
+	return state;
+    }
+
+    /**
+     * Tests whether this module is working. Uses a private scheduler
+     * instance, so it does not matter which scheduler the kernel is actually
+     * using.
+     */
+    public static void selfTest() {
+	MLFQScheduler s = new MLFQScheduler();
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread cpu = new KThread().setName("mlfq cpu-bound");
+	KThread io = new KThread().setName("mlfq interactive");
+
+	// burning a whole slice drops a level, and the slices get longer
+	for (int level=0; level<s.numLevels-1; level++) {
+	    for (int i=1; i<s.getQuantum(level); i++)
+		Lib.assertTrue(!s.timerTick(cpu));
+	    Lib.assertTrue(s.timerTick(cpu));
+	    Lib.assertTrue(s.getPriority(cpu) == level+1);
+	}
+
+	// the more urgent thread is dequeued first, even if it arrived last
+	ThreadQueue q = s.newThreadQueue(false);
+	q.waitForAccess(cpu);
+	q.waitForAccess(io);
+	Lib.assertTrue(q.nextThread() == io);
+	Lib.assertTrue(q.nextThread() == cpu);
+	Lib.assertTrue(q.nextThread() == null);
+
+	// a reset brings everyone, including queued threads, back to level 0
+	q.waitForAccess(cpu);
+	while (s.ticksSinceReset != 0)
+	    s.timerTick(io);
+	Lib.assertTrue(s.getPriority(cpu) == 0);
+	Lib.assertTrue(q.nextThread() == cpu);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    private int numLevels;
+    private int baseQuantum;
+    private int resetPeriod;
+
+    private int ticksSinceReset = 0;
+    /** Incremented by every reset, so that thread states can catch up. */
+    private int epoch = 0;
+
+    /**
+     * A <tt>ThreadQueue</tt> with one FIFO list per level.
+     */
+    protected class MultiLevelQueue extends ThreadQueue {
+	MultiLevelQueue() {
+	    levels = new ArrayList<LinkedList<KThread>>(numLevels);
+	    for (int i=0; i<numLevels; i++)
+		levels.add(new LinkedList<KThread>());
+	}
+
+	/**
+	 * Add a thread. A thread added by an interrupt handler is being woken
+	 * up after waiting for I/O, so it is boosted one level.
+	 */
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    catchUp();
+
+	    ThreadState state = getThreadState(thread);
+	    if (Machine.interrupt().inHandler() && state.level > 0) {
+		state.level--;
+		state.ticksUsed = 0;
+	    }
+
+	    levels.get(state.level).add(thread);
+	    nonEmpty |= 1 << state.level;
+	}
+
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    catchUp();
+
+	    if (nonEmpty == 0)
+		return null;
+
+	    int level = Integer.numberOfTrailingZeros(nonEmpty);
+	    KThread thread = levels.get(level).removeFirst();
+	    if (levels.get(level).isEmpty())
+		nonEmpty &= ~(1 << level);
+
+	    return thread;
+	}
+
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (int level=0; level<numLevels; level++) {
+		System.out.print(level + ":");
+		for (Iterator<KThread> i=levels.get(level).iterator(); i.hasNext(); )
+		    System.out.print(" " + i.next());
+		System.out.println();
+	    }
+	}
+
+	/**
+	 * If a reset happened since this queue was last used, its waiters are
+	 * all at level 0 now, so merge the levels, most urgent first.
+	 */
+	private void catchUp() {
+	    if (queueEpoch == epoch)
+		return;
+
+	    queueEpoch = epoch;
+	    for (int level=1; level<numLevels; level++) {
+		levels.get(0).addAll(levels.get(level));
+		levels.get(level).clear();
+	    }
+	    nonEmpty = levels.get(0).isEmpty() ? 0 : 1;
+	}
+
+	private List<LinkedList<KThread>> levels;
+	/** Bit <i>i</i> is set if level <i>i</i> has waiters. */
+	private int nonEmpty = 0;
+	private int queueEpoch = epoch;
+    }
+
+    /**
+     * The scheduling state of a thread: its level and how much of the
+     * current time slice it has used.
+     */
+    protected class ThreadState {
+	protected int level = 0;
+	protected int ticksUsed = 0;
+	protected int epoch = MLFQScheduler.this.epoch;
+    }
+}
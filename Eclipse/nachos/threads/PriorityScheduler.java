@@ -2,7 +2,6 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.TreeSet;
 import java.util.HashSet;
 import java.util.Iterator;
 
@@ -25,6 +24,13 @@ import java.util.Iterator;
  * <p>
  * A priority scheduler must partially solve the priority inversion problem; in
  * particular, priority must be donated through locks, and through joins.
+ *
+ * <p>
+ * Each queue is a binary heap ordered by effective priority and then by
+ * enqueue order, and each thread remembers its position in the heap it is
+ * waiting on, so enqueueing, dequeueing and changing a waiter's priority all
+ * take logarithmic time. Effective priorities are cached, and a change is
+ * pushed only along the chain of owners it actually affects.
  */
 public class PriorityScheduler extends Scheduler {
     /**
@@ -96,6 +102,69 @@ public class PriorityScheduler extends Scheduler {
 	return true;
     }
 
+    /**
+     * Tests whether this module is working. Builds queues from a private
+     * scheduler instance, so it does not matter which scheduler the kernel
+     * is actually using.
+     */
+    public static void selfTest() {
+	PriorityScheduler s = new PriorityScheduler();
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread[] t = new KThread[4];
+	for (int i=0; i<t.length; i++)
+	    t[i] = new KThread().setName("priority test " + i);
+
+	// highest priority first, ties broken by arrival
+	ThreadQueue q = s.newThreadQueue(false);
+	int[] priorities = { 1, 3, 3, 2 };
+	for (int i=0; i<t.length; i++) {
+	    s.setPriority(t[i], priorities[i]);
+	    q.waitForAccess(t[i]);
+	}
+	Lib.assertTrue(q.nextThread() == t[1]);
+	Lib.assertTrue(q.nextThread() == t[2]);
+	Lib.assertTrue(q.nextThread() == t[3]);
+	Lib.assertTrue(q.nextThread() == t[0]);
+	Lib.assertTrue(q.nextThread() == null);
+
+	// donation along a chain: t2 waits on b (held by t1), which waits on
+	// a (held by t0)
+	ThreadQueue a = s.newThreadQueue(true);
+	ThreadQueue b = s.newThreadQueue(true);
+	s.setPriority(t[0], 1);
+	s.setPriority(t[1], 2);
+	s.setPriority(t[2], 6);
+	a.acquire(t[0]);
+	b.acquire(t[1]);
+	a.waitForAccess(t[1]);
+	b.waitForAccess(t[2]);
+	Lib.assertTrue(s.getEffectivePriority(t[1]) == 6);
+	Lib.assertTrue(s.getEffectivePriority(t[0]) == 6);
+
+	s.setPriority(t[2], 0);
+	Lib.assertTrue(s.getEffectivePriority(t[1]) == 2);
+	Lib.assertTrue(s.getEffectivePriority(t[0]) == 2);
+
+	Lib.assertTrue(a.nextThread() == t[1]);
+	Lib.assertTrue(s.getEffectivePriority(t[0]) == 1);
+	Lib.assertTrue(b.nextThread() == t[2]);
+	Lib.assertTrue(s.getEffectivePriority(t[1]) == 2);
+	Lib.assertTrue(a.nextThread() == null);
+	Lib.assertTrue(b.nextThread() == null);
+
+	// a waiter whose priority rises overtakes earlier arrivals
+	q.waitForAccess(t[0]);
+	q.waitForAccess(t[1]);
+	q.waitForAccess(t[2]);
+	s.setPriority(t[2], priorityMaximum);
+	Lib.assertTrue(q.nextThread() == t[2]);
+	Lib.assertTrue(q.nextThread() == t[1]);
+	Lib.assertTrue(q.nextThread() == t[0]);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
     /**
      * The default priority for a new thread. Do not change this value.
      */
@@ -142,8 +211,16 @@ public class PriorityScheduler extends Scheduler {
 
 	public KThread nextThread() {
 	    Lib.assertTrue(Machine.interrupt().disabled());
-	    // implement me
-	    return null;
+
+	    ThreadState next = pickNextThread();
+	    if (next == null) {
+		setOwner(null);
+		return null;
+	    }
+
+	    remove(next);
+	    next.acquire(this);
+	    return next.thread;
 	}
 
 	/**
@@ -154,13 +231,129 @@ public class PriorityScheduler extends Scheduler {
 	 *		return.
 	 */
 	protected ThreadState pickNextThread() {
-	    // implement me
-	    return null;
+	    return size == 0 ? null : heap[0];
 	}
 	
 	public void print() {
 	    Lib.assertTrue(Machine.interrupt().disabled());
-	    // implement me (if you want)
+
+	    for (int i=0; i<size; i++)
+		System.out.print(heap[i].thread + "(" +
+				 heap[i].effectivePriority + ") ");
+	    System.out.println();
+	}
+
+	/**
+	 * Return the priority this queue donates to its owner: the highest
+	 * effective priority of any waiting thread, or
+	 * <tt>priorityMinimum</tt> if there is nothing to donate.
+	 */
+	int getDonatedPriority() {
+	    if (!transferPriority || size == 0)
+		return priorityMinimum;
+	    return heap[0].effectivePriority;
+	}
+
+	/**
+	 * Make <i>newOwner</i> the thread holding the resource guarded by this
+	 * queue, taking the donation away from the previous owner.
+	 */
+	void setOwner(ThreadState newOwner) {
+	    if (!transferPriority || owner == newOwner)
+		return;
+
+	    ThreadState oldOwner = owner;
+	    owner = newOwner;
+
+	    if (oldOwner != null) {
+		oldOwner.owned.remove(this);
+		oldOwner.updateEffectivePriority();
+	    }
+	    if (newOwner != null) {
+		newOwner.owned.add(this);
+		newOwner.updateEffectivePriority();
+	    }
+	}
+
+	/** Add <i>state</i> to the heap. */
+	void add(ThreadState state) {
+	    if (size == heap.length) {
+		ThreadState[] bigger = new ThreadState[heap.length * 2];
+		System.arraycopy(heap, 0, bigger, 0, size);
+		heap = bigger;
+	    }
+
+	    state.enqueueTime = enqueueCounter++;
+	    state.heapIndex = size;
+	    heap[size++] = state;
+	    siftUp(state.heapIndex);
+	}
+
+	/** Remove <i>state</i>, which must be in the heap. */
+	void remove(ThreadState state) {
+	    int i = state.heapIndex;
+	    Lib.assertTrue(i >= 0 && i < size && heap[i] == state);
+
+	    ThreadState last = heap[--size];
+	    heap[size] = null;
+	    state.heapIndex = -1;
+
+	    if (last != state) {
+		heap[i] = last;
+		last.heapIndex = i;
+		siftUp(i);
+		siftDown(last.heapIndex);
+	    }
+	}
+
+	/**
+	 * Restore heap order after the effective priority of <i>state</i>
+	 * changed.
+	 */
+	void reposition(ThreadState state) {
+	    siftUp(state.heapIndex);
+	    siftDown(state.heapIndex);
+	}
+
+	/**
+	 * Return <tt>true</tt> if <i>a</i> should be dequeued before <i>b</i>.
+	 */
+	private boolean before(ThreadState a, ThreadState b) {
+	    if (a.effectivePriority != b.effectivePriority)
+		return a.effectivePriority > b.effectivePriority;
+	    return a.enqueueTime < b.enqueueTime;
+	}
+
+	private void siftUp(int i) {
+	    ThreadState state = heap[i];
+	    while (i > 0) {
+		int parent = (i-1) / 2;
+		if (!before(state, heap[parent]))
+		    break;
+		heap[i] = heap[parent];
+		heap[i].heapIndex = i;
+		i = parent;
+	    }
+	    heap[i] = state;
+	    state.heapIndex = i;
+	}
+
+	private void siftDown(int i) {
+	    ThreadState state = heap[i];
+	    while (true) {
+		int child = 2*i + 1;
+		if (child >= size)
+		    break;
+		if (child+1 < size && before(heap[child+1], heap[child]))
+		    child++;
+		if (!before(heap[child], state))
+		    break;
+		heap[i] = heap[child];
+		heap[i].heapIndex = i;
+		i = child;
+	    }
+	    heap[i] = state;
+	    state.heapIndex = i;
 	}
 
 	/**
@@ -168,6 +361,16 @@ public class PriorityScheduler extends Scheduler {
 	 * threads to the owning thread.
 	 */
 	public boolean transferPriority;
+
+	/** The thread holding the resource, if priority is transferred. */
+	private ThreadState owner = null;
+
+	/** The waiting threads, a binary heap in <tt>heap[0..size-1]</tt>. */
+	private ThreadState[] heap = new ThreadState[8];
+	private int size = 0;
+
+	/** Orders waiters of equal priority by arrival. */
+	private long enqueueCounter = 0;
     }
 
     /**
@@ -205,8 +408,7 @@ public class PriorityScheduler extends Scheduler {
 	 * @return	the effective priority of the associated thread.
 	 */
 	public int getEffectivePriority() {
-	    // implement me
-	    return priority;
+	    return effectivePriority;
 	}
 
 	/**
@@ -220,7 +422,7 @@ public class PriorityScheduler extends Scheduler {
 	    
 	    this.priority = priority;
 	    
-	    // implement me
+	    updateEffectivePriority();
 	}
 
 	/**
@@ -236,7 +438,13 @@ public class PriorityScheduler extends Scheduler {
 	 * @see	nachos.threads.ThreadQueue#waitForAccess
 	 */
 	public void waitForAccess(PriorityQueue waitQueue) {
-	    // implement me
+	    Lib.assertTrue(waitingOn == null);
+
+	    waitingOn = waitQueue;
+	    waitQueue.add(this);
+
+	    if (waitQueue.owner != null)
+		waitQueue.owner.updateEffectivePriority();
 	}
 
 	/**
@@ -250,12 +458,50 @@ public class PriorityScheduler extends Scheduler {
 	 * @see	nachos.threads.ThreadQueue#nextThread
 	 */
 	public void acquire(PriorityQueue waitQueue) {
-	    // implement me
+	    if (waitingOn == waitQueue)
+		waitingOn = null;
+
+	    waitQueue.setOwner(this);
 	}	
 
+	/**
+	 * Recompute the effective priority from this thread's own priority and
+	 * the donations of the queues it owns. If it changed, move this thread
+	 * within the queue it is waiting on, and pass the change on to that
+	 * queue's owner. Propagation stops at the first thread whose effective
+	 * priority is unaffected.
+	 */
+	void updateEffectivePriority() {
+	    int newPriority = priority;
+	    for (Iterator<PriorityQueue> i = owned.iterator(); i.hasNext(); )
+		newPriority = Math.max(newPriority, i.next().getDonatedPriority());
+
+	    if (newPriority == effectivePriority)
+		return;
+
+	    effectivePriority = newPriority;
+
+	    if (waitingOn != null) {
+		waitingOn.reposition(this);
+		if (waitingOn.owner != null)
+		    waitingOn.owner.updateEffectivePriority();
+	    }
+	}
+
 	/** The thread with which this object is associated. */	   
 	protected KThread thread;
 	/** The priority of the associated thread. */
 	protected int priority;
+	/** The cached effective priority of the associated thread. */
+	protected int effectivePriority;
+
+	/** The queue this thread is waiting on, or <tt>null</tt>. */
+	private PriorityQueue waitingOn = null;
+	/** Position in <tt>waitingOn</tt>'s heap, or -1. */
+	private int heapIndex = -1;
+	/** When this thread was added to <tt>waitingOn</tt>. */
+	private long enqueueTime;
+	/** The priority-transferring queues whose resource this thread holds. */
+	private HashSet<PriorityQueue> owned = new HashSet<PriorityQueue>();
     }
 }
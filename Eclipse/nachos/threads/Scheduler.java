@@ -154,4 +154,20 @@ public abstract class Scheduler {
     public boolean decreasePriority() {
 	return false;
     }
+
+    /**
+     * Charge <i>thread</i>, the current thread, for the CPU time since the
+     * last timer interrupt, and decide whether it should be preempted. Called
+     * by <tt>Alarm.timerInterrupt()</tt> with interrupts disabled.
+     *
+     * <p>
+     * The default implementation preempts on every timer interrupt, which
+     * gives round-robin time slicing.
+     *
+     * @param	thread	the thread that was running when the timer fired.
+     * @return	<tt>true</tt> if <i>thread</i> should yield.
+     */
+    public boolean timerTick(KThread thread) {
+	return true;
+    }
 }
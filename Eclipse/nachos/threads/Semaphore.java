@@ -20,6 +20,10 @@ import nachos.machine.*;
  * because by the time you get the value, a context switch might have occurred,
  * and some other thread might have called <tt>P()</tt> or <tt>V()</tt>, so the
  * true value might now be different.
+ *
+ * <p>
+ * The semaphore counts its sleepers, so <tt>P()</tt> on a positive semaphore
+ * and <tt>V()</tt> on one nobody is waiting for never touch the wait queue.
  */
 public class Semaphore {
     /**
@@ -38,6 +42,7 @@ public class Semaphore {
 	boolean intStatus = Machine.interrupt().disable();
 
 	if (value == 0) {
+	    waiters++;
 	    waitQueue.waitForAccess(KThread.currentThread());
 	    KThread.sleep();
 	}
@@ -55,12 +60,12 @@ public class Semaphore {
     public void V() {
 	boolean intStatus = Machine.interrupt().disable();
 
-	KThread thread = waitQueue.nextThread();
-	if (thread != null) {
-	    thread.ready();
+	if (waiters == 0) {
+	    value++;
 	}
 	else {
-	    value++;
+	    waiters--;
+	    waitQueue.nextThread().ready();
 	}
 	
 	Machine.interrupt().restore(intStatus);
@@ -84,7 +89,9 @@ public class Semaphore {
     }
 
     /**
-     * Test if this module is working.
+     * Test if this module is working. If <tt>Semaphore.benchmarkPairs</tt> is
+     * set in <tt>nachos.conf</tt>, also times that many uncontended
+     * <tt>P()</tt>/<tt>V()</tt> pairs.
      */
     public static void selfTest() {
 	Semaphore ping = new Semaphore(0);
@@ -96,9 +103,40 @@ public class Semaphore {
 	    ping.V();
 	    pong.P();
 	}
+
+	int benchmarkPairs = Config.getInteger("Semaphore.benchmarkPairs", 0);
+	if (benchmarkPairs > 0)
+	    benchmark(benchmarkPairs);
+    }
+
+    private static void benchmark(int pairs) {
+	Semaphore semaphore = new Semaphore(1);
+	long startTicks = Machine.timer().getTime();
+	long start = System.nanoTime();
+	for (int i=0; i<pairs; i++) {
+	    semaphore.P();
+	    semaphore.V();
+	}
+	report("P/V", pairs, System.nanoTime() - start,
+	       Machine.timer().getTime() - startTicks);
+    }
+
+    /**
+     * Print the result of a synchronization microbenchmark: <i>pairs</i>
+     * operations that took <i>elapsed</i> nanoseconds of host time and
+     * <i>ticks</i> of simulated time.
+     */
+    static void report(String name, int pairs, long elapsed,
+			       long ticks) {
+	System.out.println(name + " benchmark: " + pairs + " pairs in "
+			   + (elapsed / 1000000) + " ms, "
+			   + (elapsed / pairs) + " ns/pair, "
+			   + ((double) ticks / pairs) + " ticks/pair");
     }
 
     private int value;
+    /** The number of threads in <tt>waitQueue</tt>. */
+    private int waiters = 0;
     private ThreadQueue waitQueue =
 	ThreadedKernel.scheduler.newThreadQueue(false);
 }
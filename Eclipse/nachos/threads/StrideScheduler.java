@@ -0,0 +1,245 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+
+/**
+ * A stride scheduler, a deterministic form of proportional-share scheduling.
+ *
+ * <p>
+ * Each thread holds a number of tickets (its priority) and has a
+ * <i>stride</i> inversely proportional to them. Each thread also has a
+ * <i>pass</i> value, which grows by its stride for every timer interrupt it
+ * spends running. Queues are min-heaps on pass, so the thread that has
+ * received the least CPU time relative to its tickets runs next. Over any
+ * interval a thread's share of the CPU is therefore proportional to its
+ * tickets, with an error bounded by one time slice.
+ *
+ * <p>
+ * A thread that joins a queue never keeps a pass below the pass of the thread
+ * most recently dequeued from it. Otherwise a thread that slept for a long
+ * time would monopolize the CPU when it woke up.
+ */
+public class StrideScheduler extends Scheduler {
+    /**
+     * Allocate a new stride scheduler.
+     */
+    public StrideScheduler() {
+    }
+
+    /**
+     * Allocate a new stride thread queue.
+     *
+     * @param	transferPriority	ignored; this scheduler does not donate
+     *					tickets.
+     * @return	a new stride thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new StrideQueue();
+    }
+
+    public int getPriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return getThreadState(thread).tickets;
+    }
+
+    public int getEffectivePriority(KThread thread) {
+	return getPriority(thread);
+    }
+
+    public void setPriority(KThread thread, int priority) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	Lib.assertTrue(priority >= priorityMinimum &&
+		   priority <= priorityMaximum);
+
+	ThreadState state = getThreadState(thread);
+	state.tickets = priority;
+	state.stride = stride1 / priority;
+    }
+
+    public boolean increasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+	boolean changed = false;
+
+	int priority = getPriority(thread);
+	if (priority != priorityMaximum) {
+	    setPriority(thread, priority+1);
+	    changed = true;
+	}
+
+	Machine.interrupt().restore(intStatus);
+	return changed;
+    }
+
+    public boolean decreasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+	boolean changed = false;
+
+	int priority = getPriority(thread);
+	if (priority != priorityMinimum) {
+	    setPriority(thread, priority-1);
+	    changed = true;
+	}
+
+	Machine.interrupt().restore(intStatus);
+	return changed;
+    }
+
+    /**
+     * Charge the current thread one stride for the timer interrupt it ran
+     * through, then preempt it so the thread with the smallest pass can run.
+     */
+    public boolean timerTick(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	ThreadState state = getThreadState(thread);
+	state.pass += state.stride;
+	return true;
+    }
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected ThreadState getThreadState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new ThreadState(thread);
+
+	return (ThreadState) thread.schedulingState;
+    }
+
+    /**
+     * Tests whether this module is working. Uses a private scheduler
+     * instance, so it does not matter which scheduler the kernel is actually
+     * using.
+     */
+    public static void selfTest() {
+	StrideScheduler s = new StrideScheduler();
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread a = new KThread().setName("stride test a");
+	KThread b = new KThread().setName("stride test b");
+	s.setPriority(a, 1);
+	s.setPriority(b, 3);
+
+	// simulate a ready queue: run whoever is picked for one tick
+	ThreadQueue q = s.newThreadQueue(false);
+	q.waitForAccess(a);
+	q.waitForAccess(b);
+
+	int runsOfB = 0;
+	for (int i=0; i<400; i++) {
+	    KThread next = q.nextThread();
+	    if (next == b)
+		runsOfB++;
+	    s.timerTick(next);
+	    q.waitForAccess(next);
+	}
+	Lib.assertTrue(runsOfB == 300);
+
+	Lib.assertTrue(q.nextThread() != null);
+	Lib.assertTrue(q.nextThread() != null);
+	Lib.assertTrue(q.nextThread() == null);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * The default number of tickets for a new thread.
+     */
+    public static final int priorityDefault = 100;
+    /**
+     * The minimum number of tickets a thread can have.
+     */
+    public static final int priorityMinimum = 1;
+    /**
+     * The maximum number of tickets a thread can have.
+     */
+    public static final int priorityMaximum = 1 << 16;
+
+    /** The stride of a thread holding one ticket. */
+    private static final long stride1 = 1L << 32;
+
+    /**
+     * A <tt>ThreadQueue</tt> kept as a min-heap on pass, earlier arrivals
+     * first among equal passes.
+     */
+    protected class StrideQueue extends ThreadQueue {
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState state = getThreadState(thread);
+	    state.pass = Math.max(state.pass, lastPass);
+	    state.enqueueTime = enqueueCounter++;
+	    heap.add(state);
+	}
+
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState state = heap.poll();
+	    if (state == null)
+		return null;
+
+	    lastPass = state.pass;
+	    return state.thread;
+	}
+
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (Iterator<ThreadState> i=heap.iterator(); i.hasNext(); ) {
+		ThreadState state = i.next();
+		System.out.print(state.thread + "(" + state.pass + ") ");
+	    }
+	    System.out.println();
+	}
+
+	private PriorityQueue<ThreadState> heap =
+	    new PriorityQueue<ThreadState>(11, passOrder);
+	/** The pass of the thread most recently dequeued. */
+	private long lastPass = 0;
+	private long enqueueCounter = 0;
+    }
+
+    private static final Comparator<ThreadState> passOrder =
+	new Comparator<ThreadState>() {
+	    public int compare(ThreadState a, ThreadState b) {
+		if (a.pass != b.pass)
+		    return a.pass < b.pass ? -1 : 1;
+		if (a.enqueueTime != b.enqueueTime)
+		    return a.enqueueTime < b.enqueueTime ? -1 : 1;
+		return 0;
+	    }
+	};
+
+    /**
+     * The scheduling state of a thread: its tickets, stride and pass.
+     */
+    protected class ThreadState {
+	ThreadState(KThread thread) {
+	    this.thread = thread;
+	}
+
+	protected KThread thread;
+	protected int tickets = priorityDefault;
+	protected long stride = stride1 / priorityDefault;
+	protected long pass = 0;
+	private long enqueueTime;
+    }
+}
@@ -48,7 +48,19 @@ public class ThreadedKernel extends Kernel {
     public void selfTest() {
 	KThread.selfTest();
 	Semaphore.selfTest();
+	Lock.selfTest();
+	Alarm.selfTest();
+	Condition2.selfTest();
+	Communicator.selfTest();
+	PriorityScheduler.selfTest();
+	LotteryScheduler.selfTest();
+	MLFQScheduler.selfTest();
+	StrideScheduler.selfTest();
 	SynchList.selfTest();
+	if (Machine.stubFileSystem() instanceof StubFileSystem)
+	    ((StubFileSystem) Machine.stubFileSystem()).selfTest();
+	if (fileSystem instanceof nachos.filesys.NachosFileSystem)
+	    ((nachos.filesys.NachosFileSystem) fileSystem).selfTest();
 	if (Machine.bank() != null) {
 	    ElevatorBank.selfTest();
 	}
@@ -83,4 +95,6 @@ public class ThreadedKernel extends Kernel {
     private static Communicator dummy5 = null;
     private static Rider dummy6 = null;
     private static ElevatorController dummy7 = null;
+    private static MLFQScheduler dummy8 = null;
+    private static StrideScheduler dummy9 = null;
 }
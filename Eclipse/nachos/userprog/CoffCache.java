@@ -0,0 +1,79 @@
+package nachos.userprog;
+
+import java.io.EOFException;
+import java.lang.ref.SoftReference;
+import java.util.HashMap;
+import java.util.Map;
+
+import nachos.machine.Coff;
+import nachos.machine.Lib;
+import nachos.machine.Machine;
+import nachos.machine.OpenFile;
+import nachos.threads.ThreadedKernel;
+
+/**
+ * A kernel-wide cache of parsed executable headers. Loading a program opens its file and, unless
+ * the same version of it has been loaded before, reads and checks the file and section headers;
+ * a shell starting the same short-lived programs again and again then only parses each once.
+ *
+ * <p>
+ * Versions are those of the <tt>TextPageCache</tt>, so a file that has been rewritten is parsed
+ * again. Parsed headers are only softly referenced, and can be reclaimed by the garbage
+ * collector if the host runs short of memory. Section contents are not cached here: the text is
+ * in the text page cache, and data pages are read on demand.
+ */
+public class CoffCache {
+    /** Allocate an empty cache. */
+    public CoffCache() {
+    }
+
+    /**
+     * Open version <i>version</i> of executable <i>name</i> and return a loader for it.
+     *
+     * @return the loader, or <tt>null</tt> if the file cannot be opened or is not a valid
+     *         executable.
+     */
+    public Coff open(String name, int version) {
+        OpenFile file = ThreadedKernel.fileSystem.open(name, false);
+        if (file == null) {
+            Lib.debug(dbgCoffCache, "\topen failed");
+            return null;
+        }
+
+        Entry entry = entries.get(name);
+        Coff parsed = (entry != null && entry.version == version) ? entry.coff.get() : null;
+        if (parsed != null) {
+            Machine.getStats().numCoffCacheHits++;
+            return new Coff(file, parsed);
+        }
+
+        Coff coff;
+        try {
+            coff = new Coff(file);
+        } catch (EOFException e) {
+            file.close();
+            Lib.debug(dbgCoffCache, "\tcoff load failed");
+            return null;
+        }
+
+        // keep a copy of our own, since the caller's loses its sections when it is closed
+        entries.put(name, new Entry(version, new Coff(null, coff)));
+        Machine.getStats().numCoffCacheMisses++;
+        return coff;
+    }
+
+    private static class Entry {
+        Entry(int version, Coff coff) {
+            this.version = version;
+            this.coff = new SoftReference<Coff>(coff);
+        }
+
+        final int version;
+        final SoftReference<Coff> coff;
+    }
+
+    /** The headers last parsed from each executable. */
+    private Map<String, Entry> entries = new HashMap<String, Entry>();
+
+    private static final char dbgCoffCache = 'c';
+}
@@ -0,0 +1,227 @@
+package nachos.userprog;
+
+import nachos.machine.Lib;
+import nachos.machine.Machine;
+import nachos.machine.OpenFile;
+import nachos.machine.Stats;
+
+/**
+ * An entry in a process's file table: an <tt>OpenFile</tt>, the descriptor's position in it, and a
+ * buffer.
+ *
+ * <p>
+ * For files on the file system, small reads are served from a buffer filled by one large read,
+ * and small writes are collected and written out together, so that a program moving a few bytes
+ * at a time does not pay for a file system call (and its simulated delay) every time. Transfers
+ * at least as large as the buffer go straight to the file. As with stdio, buffered writes become
+ * visible through other descriptors only once they are flushed: when the buffer fills, when this
+ * descriptor is read from, or when it is closed.
+ *
+ * <p>
+ * The console is not buffered, so that interactive programs see their input and output at once.
+ *
+ * <p>
+ * An executable that some process is running cannot be written: a write to it fails, and so does
+ * flushing data buffered before the process started.
+ *
+ * <p>
+ * A descriptor can be in several file table slots at once (stderr shares stdout's, and a forked
+ * child shares its parent's), and so has a reference count; the file is only closed when the last
+ * slot lets go of it.
+ */
+class FileDescriptor {
+    /**
+     * Wrap <i>file</i>. If <i>buffered</i> is true, <i>file</i> must support positional reads and
+     * writes.
+     */
+    FileDescriptor(OpenFile file, boolean buffered, int bufferSize) {
+        this.file = file;
+        if (buffered)
+            buffer = new byte[bufferSize];
+    }
+
+    /**
+     * Read up to <i>length</i> bytes into <i>data</i>, starting at the current position.
+     *
+     * @return the number of bytes read, or -1 on an error before any byte was read.
+     */
+    int read(byte[] data, int offset, int length) {
+        if (buffer == null)
+            return file.read(data, offset, length);
+
+        Stats stats = Machine.getStats();
+
+        if (bufferMode == writing && !flush())
+            return -1;
+
+        int amount = 0;
+        while (amount < length) {
+            if (bufferMode == reading && bufferPos < bufferLength) {
+                int n = Math.min(length - amount, bufferLength - bufferPos);
+                System.arraycopy(buffer, bufferPos, data, offset + amount, n);
+                bufferPos += n;
+                position += n;
+                amount += n;
+                continue;
+            }
+
+            bufferMode = empty;
+
+            int n;
+            stats.numFileReads++;
+            if (length - amount >= buffer.length) {
+                n = file.read(position, data, offset + amount, length - amount);
+                if (n > 0)
+                    position += n;
+                else
+                    return (amount > 0 || n == 0) ? amount : -1;
+                stats.numFileBytesRead += n;
+                amount += n;
+            } else {
+                n = file.read(position, buffer, 0, buffer.length);
+                if (n <= 0)
+                    return (amount > 0 || n == 0) ? amount : -1;
+                stats.numFileBytesRead += n;
+                bufferMode = reading;
+                bufferPos = 0;
+                bufferLength = n;
+            }
+        }
+
+        return amount;
+    }
+
+    /**
+     * Write <i>length</i> bytes from <i>data</i>, starting at the current position.
+     *
+     * @return the number of bytes written, or -1 on an error.
+     */
+    int write(byte[] data, int offset, int length) {
+        if (buffer == null)
+            return file.write(data, offset, length);
+        if (isRunning())
+            return -1;
+
+        Stats stats = Machine.getStats();
+
+        // anything read ahead is stale now
+        if (bufferMode == reading)
+            bufferMode = empty;
+
+        if (bufferMode == writing && bufferLength + length > buffer.length && !flush())
+            return -1;
+
+        if (length >= buffer.length) {
+            stats.numFileWrites++;
+            int n = file.write(position, data, offset, length);
+            if (n > 0) {
+                position += n;
+                stats.numFileBytesWritten += n;
+                changed();
+            }
+            return n;
+        }
+
+        if (bufferMode == empty) {
+            bufferMode = writing;
+            bufferLength = 0;
+        }
+        System.arraycopy(data, offset, buffer, bufferLength, length);
+        bufferLength += length;
+        position += length;
+        return length;
+    }
+
+    /**
+     * Write out any buffered data.
+     *
+     * @return <tt>false</tt> if the data could not all be written.
+     */
+    boolean flush() {
+        if (bufferMode != writing)
+            return true;
+
+        bufferMode = empty;
+
+        if (isRunning()) {
+            Lib.debug(dbgFile, "lost buffered write to running executable " + file.getName());
+            position -= bufferLength;
+            return false;
+        }
+
+        Stats stats = Machine.getStats();
+        stats.numFileWrites++;
+        int start = position - bufferLength;
+        int n = file.write(start, buffer, 0, bufferLength);
+        if (n > 0) {
+            stats.numFileBytesWritten += n;
+            changed();
+        }
+
+        if (n != bufferLength) {
+            Lib.debug(dbgFile, "lost buffered write to " + file.getName());
+            position = start + Math.max(n, 0);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Return <tt>true</tt> if this descriptor is buffered, that is, if it is a file on the file
+     * system rather than the console. Only such files are counted in the file I/O statistics; the
+     * console keeps its own.
+     */
+    boolean isBuffered() {
+        return buffer != null;
+    }
+
+    /**
+     * Called once data written through this descriptor has reached the file, so that a program
+     * started from now on does not run text cached from the old contents.
+     */
+    private void changed() {
+        UserKernel.textPageCache.invalidate(file.getName());
+    }
+
+    /** Return <tt>true</tt> if the file is an executable some process is running. */
+    private boolean isRunning() {
+        return UserKernel.textPageCache.isRunning(file.getName());
+    }
+
+    /** Return the name of the file. */
+    String getName() {
+        return file.getName();
+    }
+
+    /** Add a reference, for one more file table slot holding this descriptor. */
+    void retain() {
+        references++;
+    }
+
+    /** Drop a reference; when none is left, flush the buffer and close the file. */
+    void close() {
+        if (--references > 0)
+            return;
+
+        flush();
+        file.close();
+    }
+
+    private OpenFile file;
+    private int references = 1;
+    /** The position in the file, as seen by the process. */
+    private int position = 0;
+
+    /** <tt>null</tt> if this descriptor is not buffered. */
+    private byte[] buffer = null;
+    private int bufferMode = empty;
+    /** The number of valid bytes in the buffer. */
+    private int bufferLength = 0;
+    /** In reading mode, the next byte of the buffer to return. */
+    private int bufferPos = 0;
+
+    /** What the buffer holds: nothing, data read ahead, or data not yet written. */
+    private static final int empty = 0, reading = 1, writing = 2;
+
+    private static final char dbgFile = 'f';
+}
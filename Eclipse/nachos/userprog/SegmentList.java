@@ -0,0 +1,95 @@
+package nachos.userprog;
+
+import nachos.machine.Lib;
+
+/**
+ * The physical memory behind a range of virtual addresses, as a list of contiguous runs. Filled in
+ * by <tt>UserProcess.gatherSegments()</tt>, which also pins the frames involved; the caller copies
+ * one run at a time straight out of (or into) main memory and then hands the list back to
+ * <tt>UserProcess.releaseSegments()</tt>.
+ *
+ * <p>
+ * A list is meant to be reused from one transfer to the next, so its arrays only ever grow.
+ */
+public class SegmentList {
+    /** Allocate an empty segment list. */
+    public SegmentList() {
+    }
+
+    /** Return the number of contiguous physical runs. */
+    public int size() {
+        return numSegments;
+    }
+
+    /** Return the physical address of the first byte of run <i>i</i>. */
+    public int getAddress(int i) {
+        Lib.assertTrue(i >= 0 && i < numSegments);
+        return addresses[i];
+    }
+
+    /** Return the number of bytes in run <i>i</i>. */
+    public int getLength(int i) {
+        Lib.assertTrue(i >= 0 && i < numSegments);
+        return lengths[i];
+    }
+
+    /** Return the total number of bytes covered by all runs. */
+    public int getTotalLength() {
+        return totalLength;
+    }
+
+    /**
+     * Append <i>length</i> bytes at physical address <i>paddr</i>, merging them into the last run
+     * if they directly follow it.
+     */
+    void add(int paddr, int length) {
+        if (numSegments > 0 && addresses[numSegments - 1] + lengths[numSegments - 1] == paddr) {
+            lengths[numSegments - 1] += length;
+        } else {
+            if (numSegments == addresses.length) {
+                addresses = grow(addresses);
+                lengths = grow(lengths);
+            }
+            addresses[numSegments] = paddr;
+            lengths[numSegments] = length;
+            numSegments++;
+        }
+        totalLength += length;
+    }
+
+    /** Remember that frame <i>ppn</i> was pinned for this transfer. */
+    void addPinned(int ppn) {
+        if (numPinned == pinned.length)
+            pinned = grow(pinned);
+        pinned[numPinned++] = ppn;
+    }
+
+    int getNumPinned() {
+        return numPinned;
+    }
+
+    int getPinned(int i) {
+        return pinned[i];
+    }
+
+    /** Forget all runs and pinned frames. */
+    void clear() {
+        numSegments = 0;
+        numPinned = 0;
+        totalLength = 0;
+    }
+
+    private static int[] grow(int[] array) {
+        int[] bigger = new int[array.length * 2];
+        System.arraycopy(array, 0, bigger, 0, array.length);
+        return bigger;
+    }
+
+    private int[] addresses = new int[4];
+    private int[] lengths = new int[4];
+    private int numSegments = 0;
+    private int totalLength = 0;
+
+    private int[] pinned = new int[4];
+    private int numPinned = 0;
+}
@@ -7,6 +7,23 @@ import nachos.userprog.*;
 /**
  * Provides a simple, synchronized interface to the machine's console. The
  * interface can also be accessed through <tt>OpenFile</tt> objects.
+ *
+ * <p>
+ * Output goes through a ring buffer. A write copies its bytes into the ring
+ * and returns as soon as they all fit, and the send interrupt handler feeds
+ * the console from the ring. Normally the console is given one byte per
+ * interrupt. If <tt>SynchConsole.fastOutput</tt> is set in
+ * <tt>nachos.conf</tt>, it is given as much of the ring as it will take at
+ * once, and sends all of it with a single interrupt. <tt>drain()</tt> waits
+ * until everything written has been sent.
+ *
+ * <p>
+ * Input is buffered too. Normally each byte can be read as soon as it
+ * arrives. If <tt>SynchConsole.lineBuffered</tt> is set, the console echoes
+ * and edits what is typed itself, and input can only be read a whole line
+ * at a time, once its newline arrives; reading through
+ * <tt>openForReading()</tt> then waits for a line instead of returning
+ * nothing.
  */
 public class SynchConsole {
     /**
@@ -16,7 +33,15 @@ public class SynchConsole {
      */
     public SynchConsole(SerialConsole console) {
 	this.console = console;
-	
+
+	fastOutput = Config.getBoolean("SynchConsole.fastOutput", false);
+	lineBuffered = Config.getBoolean("SynchConsole.lineBuffered", false);
+	outBuffer = new byte[Config.getInteger("SynchConsole.outputBufferSize",
+					       4096)];
+	inBuffer = new byte[Config.getInteger("SynchConsole.inputBufferSize",
+					      256)];
+	Lib.assertTrue(outBuffer.length > 0 && inBuffer.length > 0);
+
 	Runnable receiveHandler = new Runnable() {
 	    public void run() { receiveInterrupt(); }
 	};
@@ -37,24 +62,46 @@ public class SynchConsole {
      *		and no byte was available.
      */
     public int readByte(boolean block) {
-	int value;
-	boolean intStatus = Machine.interrupt().disable();	
+	byte[] value = new byte[1];
+	if (read(value, 0, 1, block) == 0)
+	    return -1;
+
+	return value[0] & 0xFF;
+    }
+
+    /**
+     * Read up to <i>length</i> bytes into <i>buf</i>. In line-buffered mode,
+     * never reads past the end of a line.
+     *
+     * @return	the number of bytes read, which is 0 only if <i>block</i> is
+     *		false and nothing was available.
+     */
+    private int read(byte[] buf, int offset, int length, boolean block) {
+	if (length == 0)
+	    return 0;
+
 	readLock.acquire();
+	boolean intStatus = Machine.interrupt().disable();
 
-	if (block || charAvailable) {
-	    charAvailable = false;
+	while (block && inReady == 0) {
+	    readWaiting = true;
 	    readWait.P();
-
-	    value = console.readByte();
-	    Lib.assertTrue(value != -1);
 	}
-	else {
-	    value = -1;
+
+	int amount = 0;
+	while (amount < length && inReady > 0) {
+	    byte value = inBuffer[inHead];
+	    inHead = (inHead+1) % inBuffer.length;
+	    inReady--;
+
+	    buf[offset + amount++] = value;
+	    if (lineBuffered && value == '\n')
+		break;
 	}
 
-	readLock.release();
 	Machine.interrupt().restore(intStatus);
-	return value;
+	readLock.release();
+	return amount;
     }
 
     /**
@@ -67,22 +114,114 @@ public class SynchConsole {
     }
 
     private void receiveInterrupt() {
-	charAvailable = true;
-	readWait.V();
+	int value = console.readByte();
+	if (value == -1)
+	    return;
+
+	int buffered = inReady + inPending;
+	int tail = (inHead + buffered) % inBuffer.length;
+
+	if (!lineBuffered) {
+	    if (buffered < inBuffer.length) {
+		inBuffer[tail] = (byte) value;
+		inReady++;
+	    }
+	}
+	else if (value == '\b') {
+	    if (inPending > 0) {
+		inPending--;
+		echo('\b');
+		echo(' ');
+		echo('\b');
+	    }
+	}
+	else if (buffered < inBuffer.length) {
+	    inBuffer[tail] = (byte) value;
+	    inPending++;
+	    echo(value);
+
+	    // a line that fills the buffer is cut short, rather than lost
+	    if (value == '\n' || buffered+1 == inBuffer.length) {
+		inReady += inPending;
+		inPending = 0;
+	    }
+	}
+
+	if (readWaiting && inReady > 0) {
+	    readWaiting = false;
+	    readWait.V();
+	}
     }
 
     /**
-     * Send a byte. Blocks until the send is complete.
+     * Send a byte. Returns once the byte is in the output buffer, which may be
+     * before it has been sent.
      *
      * @param	value	the byte to be sent (the upper 24 bits are ignored).
      */
     public void writeByte(int value) {
+	writeBytes(new byte[] { (byte) value }, 0, 1);
+    }
+
+    /**
+     * Send <i>length</i> bytes from <i>buf</i>, without interleaving them with
+     * any other thread's output. Blocks until they are all in the output
+     * buffer, which may be before they have been sent.
+     *
+     * @param	buf	the buffer holding the bytes to send.
+     * @param	offset	the first byte of <i>buf</i> to send.
+     * @param	length	the number of bytes to send.
+     */
+    public void writeBytes(byte[] buf, int offset, int length) {
 	writeLock.acquire();
-	console.writeByte(value);
-	writeWait.P();
+	boolean intStatus = Machine.interrupt().disable();
+
+	while (length > 0) {
+	    while (outCount == outBuffer.length) {
+		// don't bother waking up for every byte sent
+		waitForOutput(outBuffer.length/2);
+	    }
+
+	    int tail = (outHead + outCount) % outBuffer.length;
+	    int amount = Math.min(length, Math.min(outBuffer.length - outCount,
+						   outBuffer.length - tail));
+	    System.arraycopy(buf, offset, outBuffer, tail, amount);
+	    outCount += amount;
+	    offset += amount;
+	    length -= amount;
+
+	    if (outSending == 0)
+		startSend();
+	}
+
+	Machine.interrupt().restore(intStatus);
+	writeLock.release();
+    }
+
+    /**
+     * Wait until every byte written so far has been sent.
+     */
+    public void drain() {
+	writeLock.acquire();
+	boolean intStatus = Machine.interrupt().disable();
+
+	while (outCount > 0)
+	    waitForOutput(0);
+
+	Machine.interrupt().restore(intStatus);
 	writeLock.release();
     }
 
+    /**
+     * Sleep until at most <i>level</i> bytes are waiting to be sent. Must be
+     * called with interrupts disabled and <tt>writeLock</tt> held.
+     */
+    private void waitForOutput(int level) {
+	writeWaiting = true;
+	wakeLevel = level;
+	writeWait.P();
+    }
+
     /**
      * Return an <tt>OpenFile</tt> that can be used to write this as a file.
      *
@@ -92,27 +231,146 @@ public class SynchConsole {
 	return new File(false, true);
     }
 
+    /**
+     * Hand the console the next bytes of the output buffer. Must be called
+     * with interrupts disabled, while no send is in progress.
+     */
+    private void startSend() {
+	if (fastOutput) {
+	    int contiguous = Math.min(outCount, outBuffer.length - outHead);
+	    outSending = console.writeBytes(outBuffer, outHead, contiguous);
+	}
+	else {
+	    console.writeByte(outBuffer[outHead]);
+	    outSending = 1;
+	}
+    }
+
     private void sendInterrupt() {
-	writeWait.V();
+	outHead = (outHead + outSending) % outBuffer.length;
+	outCount -= outSending;
+	outSending = 0;
+
+	if (outCount > 0)
+	    startSend();
+
+	if (writeWaiting && outCount <= wakeLevel) {
+	    writeWaiting = false;
+	    writeWait.V();
+	}
+    }
+
+    /**
+     * Echo a byte typed in line-buffered mode. Called from the receive
+     * interrupt handler, so it cannot wait: if the output buffer is full, the
+     * echo is lost.
+     */
+    private void echo(int value) {
+	if (outCount == outBuffer.length)
+	    return;
+
+	outBuffer[(outHead + outCount) % outBuffer.length] = (byte) value;
+	outCount++;
+
+	if (outSending == 0)
+	    startSend();
     }
 
-    private boolean charAvailable = false;
+    /**
+     * Time sending <i>bytes</i> bytes of text: one byte at a time, waiting
+     * for each to be sent (as this console used to); through the output
+     * buffer a byte per interrupt; and through the output buffer in bursts.
+     */
+    public void benchmark(int bytes) {
+	byte[] text = new byte[bytes];
+	for (int i=0; i<bytes; i++)
+	    text[i] = (byte) ((i+1) % 64 == 0 ? '\n' : 'a' + i%26);
+
+	boolean savedFastOutput = fastOutput;
+	drain();
+
+	fastOutput = false;
+	long startTicks = Machine.timer().getTime();
+	long start = System.nanoTime();
+	for (int i=0; i<bytes; i++) {
+	    writeBytes(text, i, 1);
+	    drain();
+	}
+	long[] perByte = { System.nanoTime() - start,
+			   Machine.timer().getTime() - startTicks };
+
+	startTicks = Machine.timer().getTime();
+	start = System.nanoTime();
+	writeBytes(text, 0, bytes);
+	long writerTicks = Machine.timer().getTime() - startTicks;
+	drain();
+	long[] buffered = { System.nanoTime() - start,
+			    Machine.timer().getTime() - startTicks };
+
+	fastOutput = true;
+	startTicks = Machine.timer().getTime();
+	start = System.nanoTime();
+	writeBytes(text, 0, bytes);
+	drain();
+	long[] burst = { System.nanoTime() - start,
+			 Machine.timer().getTime() - startTicks };
+
+	fastOutput = savedFastOutput;
+
+	System.out.println();
+	report("unbuffered", bytes, perByte);
+	report("buffered", bytes, buffered);
+	System.out.println("    (writer blocked for " + writerTicks
+			   + " ticks)");
+	report("burst", bytes, burst);
+    }
+
+    private static void report(String name, int bytes, long[] times) {
+	System.out.println("console " + name + " benchmark: " + bytes
+			   + " bytes in " + (times[0] / 1000000) + " ms, "
+			   + (times[0] / bytes) + " ns/byte, "
+			   + ((double) times[1] / bytes) + " ticks/byte");
+    }
 
     private SerialConsole console;
+    private boolean fastOutput, lineBuffered;
+
     private Lock readLock = new Lock();
     private Lock writeLock = new Lock();
     private Semaphore readWait = new Semaphore(0);
     private Semaphore writeWait = new Semaphore(0);
 
+    /**
+     * The input ring: <tt>inReady</tt> bytes that can be read, starting at
+     * <tt>inHead</tt>, followed by <tt>inPending</tt> bytes of a line not yet
+     * finished.
+     */
+    private byte[] inBuffer;
+    private int inHead = 0, inReady = 0, inPending = 0;
+    private boolean readWaiting = false;
+
+    /**
+     * The output ring: <tt>outCount</tt> bytes waiting to be sent, starting
+     * at <tt>outHead</tt>. The first <tt>outSending</tt> of them are being
+     * sent now.
+     */
+    private byte[] outBuffer;
+    private int outHead = 0, outCount = 0, outSending = 0;
+    private boolean writeWaiting = false;
+    private int wakeLevel = 0;
+
     private class File extends OpenFile {
 	File(boolean canRead, boolean canWrite) {
 	    super(null, "SynchConsole");
-	    
+
 	    this.canRead = canRead;
 	    this.canWrite = canWrite;
 	}
-	
+
 	public void close() {
+	    if (canWrite)
+		drain();
+
 	    canRead = canWrite = false;
 	}
 
@@ -120,25 +378,14 @@ public class SynchConsole {
 	    if (!canRead)
 		return 0;
 
-	    int i;
-	    for (i=0; i<length; i++) {
-		int value = SynchConsole.this.readByte(false);
-		if (value == -1)
-		    break;
-		
-		buf[offset+i] = (byte) value;
-	    }
-
-	    return i;
+	    return SynchConsole.this.read(buf, offset, length, lineBuffered);
 	}
 
 	public int write(byte[] buf, int offset, int length) {
 	    if (!canWrite)
 		return 0;
-	    
-	    for (int i=0; i<length; i++)
-		SynchConsole.this.writeByte(buf[offset+i]);
-	    
+
+	    writeBytes(buf, offset, length);
 	    return length;
 	}
 
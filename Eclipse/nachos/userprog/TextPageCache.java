@@ -0,0 +1,260 @@
+package nachos.userprog;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import nachos.machine.Config;
+import nachos.machine.InvertedPageTable;
+import nachos.machine.Lib;
+import nachos.machine.Machine;
+import nachos.machine.MemoryUsage;
+
+/**
+ * A kernel-wide cache of pages from the read-only sections of executables. Every process running
+ * the same program maps the same frames, so a program's text is read from its file and held in
+ * memory only once, however many processes run it and however often it is started.
+ *
+ * <p>
+ * A page is keyed by the executable's name, its version and the page number. The file systems
+ * keep no modification times, so the kernel numbers versions itself: <tt>invalidate()</tt> starts
+ * a new version whenever a process creates, writes or removes the file. Processes still running
+ * the old version keep their pages; new ones read the file again. Processes read pages of their
+ * executable on demand for as long as they run, so the file cannot be changed while any process
+ * is running it: <tt>isRunning()</tt> tells the system calls that would change it to refuse.
+ *
+ * <p>
+ * The cache holds a reference on each frame in <tt>MemoryUsage</tt>, as does every process
+ * mapping it. The frames are not in the inverted page table, so no process picks them as
+ * victims. Instead, the cache evicts pages in least recently used order, pages no process maps
+ * first, and a process short of memory evicts text it is not using itself before it gives up
+ * pages of its own. Text pages are clean, so an evicted page is dropped rather than compressed. It is
+ * unmapped from every process using it, and read from the executable again on the next fault.
+ */
+public class TextPageCache {
+    /**
+     * Allocate a cache holding at most <tt>TextPageCache.maxPages</tt> pages, by default half
+     * of uncompressed memory.
+     */
+    public TextPageCache(MemoryUsage memoryUsage) {
+        this.memoryUsage = memoryUsage;
+
+        maxPages = Config.getInteger("TextPageCache.maxPages",
+                UserProcess.compressMemStartPage / 2);
+        frames = new Entry[Machine.processor().getNumPhysPages()];
+    }
+
+    /**
+     * Return the current version of executable <i>name</i>, which a process loading it keys its
+     * pages with.
+     */
+    public int getVersion(String name) {
+        executables.add(name);
+
+        Integer version = versions.get(name);
+        return version == null ? 0 : version;
+    }
+
+    /**
+     * Start a new version of file <i>name</i>, because its contents are changing. Cached pages of
+     * older versions that no process maps are evicted at once.
+     */
+    public void invalidate(String name) {
+        if (!executables.contains(name))
+            return;
+
+        versions.put(name, getVersion(name) + 1);
+
+        for (Iterator<Entry> i = pages.values().iterator(); i.hasNext();) {
+            Entry entry = i.next();
+            if (entry.key.name.equals(name) && entry.mappers.isEmpty()
+                    && !UserKernel.invertedPageTable.isPinned(entry.ppn)) {
+                i.remove();
+                drop(entry);
+            }
+        }
+    }
+
+    /** Record that a process has started running executable <i>name</i>. */
+    public void startRunning(String name) {
+        Integer count = running.get(name);
+        running.put(name, count == null ? 1 : count + 1);
+    }
+
+    /** Record that a process running executable <i>name</i> has let go of it. */
+    public void stopRunning(String name) {
+        int count = running.get(name);
+        if (count == 1)
+            running.remove(name);
+        else
+            running.put(name, count - 1);
+    }
+
+    /**
+     * Return <tt>true</tt> if some process is running executable <i>name</i>, so that the file must
+     * not be truncated, written or removed.
+     */
+    public boolean isRunning(String name) {
+        return running.containsKey(name);
+    }
+
+    /**
+     * Map cached page <i>vpn</i> of version <i>version</i> of executable <i>name</i> into
+     * <i>process</i>, if it is cached.
+     *
+     * @return the frame holding the page, with a reference taken for <i>process</i>, or -1 if it
+     *         is not cached.
+     */
+    public int lookup(String name, int version, int vpn, UserProcess process) {
+        Entry entry = pages.get(new Key(name, version, vpn));
+        if (entry == null) {
+            Machine.getStats().numTextCacheMisses++;
+            return -1;
+        }
+
+        Machine.getStats().numTextCacheHits++;
+        memoryUsage.addReference(entry.ppn);
+        entry.mappers.add(process);
+        return entry.ppn;
+    }
+
+    /**
+     * Add page <i>vpn</i> of version <i>version</i> of executable <i>name</i>, which
+     * <i>process</i> has just read into frame <i>ppn</i>, to the cache. If it is added, the cache
+     * takes a reference on the frame, and <i>process</i> becomes one of its mappers. The page is
+     * not added if another process cached it meanwhile, or if the cache is full of pages that are
+     * all in use.
+     *
+     * @return <tt>true</tt> if the page was added.
+     */
+    public boolean insert(String name, int version, int vpn, int ppn, UserProcess process) {
+        Key key = new Key(name, version, vpn);
+        if (pages.containsKey(key))
+            return false;
+        if (pages.size() >= maxPages && evict(1, false, null) == 0)
+            return false;
+
+        Entry entry = new Entry(key, ppn);
+        entry.mappers.add(process);
+        pages.put(key, entry);
+        frames[ppn] = entry;
+        memoryUsage.addReference(ppn);
+        return true;
+    }
+
+    /**
+     * Record that <i>process</i> maps frame <i>ppn</i> too, because it was forked from a process
+     * that does. Does nothing if the frame is not in the cache.
+     */
+    public void share(int ppn, UserProcess process) {
+        if (frames[ppn] != null)
+            frames[ppn].mappers.add(process);
+    }
+
+    /**
+     * Record that <i>process</i> no longer maps frame <i>ppn</i>. Does nothing if the frame is not
+     * in the cache; in any case, the caller still releases its own reference.
+     */
+    public void unmap(int ppn, UserProcess process) {
+        if (frames[ppn] != null)
+            frames[ppn].mappers.remove(process);
+    }
+
+    /**
+     * Evict up to <i>count</i> pages to free their frames: first pages no process maps, then pages
+     * <i>spare</i> does not map (or any page, if <i>spare</i> is <tt>null</tt>), least recently
+     * used first. A page still mapped is unmapped from those processes. Pages being transferred
+     * are skipped.
+     *
+     * @return the number of frames freed.
+     */
+    public int evict(int count, UserProcess spare) {
+        int freed = evict(count, false, spare);
+        if (freed < count)
+            freed += evict(count - freed, true, spare);
+        return freed;
+    }
+
+    private int evict(int count, boolean mapped, UserProcess spare) {
+        InvertedPageTable ipt = UserKernel.invertedPageTable;
+        int freed = 0;
+
+        for (Iterator<Entry> i = pages.values().iterator(); i.hasNext() && freed < count;) {
+            Entry entry = i.next();
+            if (ipt.isPinned(entry.ppn) || entry.mappers.isEmpty() == mapped
+                    || entry.mappers.contains(spare))
+                continue;
+
+            i.remove();
+            for (UserProcess process : entry.mappers)
+                process.dropCachedPage(entry.key.vpn);
+            drop(entry);
+            freed++;
+        }
+        return freed;
+    }
+
+    /** Give up the cache's reference on a page that is no longer in <tt>pages</tt>. */
+    private void drop(Entry entry) {
+        Lib.assertTrue(memoryUsage.getReferenceCount(entry.ppn) == 1);
+
+        frames[entry.ppn] = null;
+        memoryUsage.releasePage(entry.ppn);
+        Machine.getStats().numTextCacheEvictions++;
+    }
+
+    private static class Key {
+        Key(String name, int version, int vpn) {
+            this.name = name;
+            this.version = version;
+            this.vpn = vpn;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key))
+                return false;
+
+            Key key = (Key) o;
+            return vpn == key.vpn && version == key.version && name.equals(key.name);
+        }
+
+        @Override
+        public int hashCode() {
+            return (name.hashCode() * 31 + version) * 31 + vpn;
+        }
+
+        final String name;
+        final int version, vpn;
+    }
+
+    private static class Entry {
+        Entry(Key key, int ppn) {
+            this.key = key;
+            this.ppn = ppn;
+        }
+
+        final Key key;
+        final int ppn;
+        /** The processes mapping this page. */
+        final Set<UserProcess> mappers = new HashSet<UserProcess>();
+    }
+
+    private MemoryUsage memoryUsage;
+    private int maxPages;
+
+    /** The cached pages, least recently looked up first. */
+    private LinkedHashMap<Key, Entry> pages = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+    /** The cached page in each frame, or <tt>null</tt>. */
+    private Entry[] frames;
+
+    /** The current version of each executable that has been invalidated. */
+    private Map<String, Integer> versions = new HashMap<String, Integer>();
+    /** The name of every file that has been loaded as an executable. */
+    private Set<String> executables = new HashSet<String>();
+    /** The number of processes running each executable, for those running at all. */
+    private Map<String, Integer> running = new HashMap<String, Integer>();
+}
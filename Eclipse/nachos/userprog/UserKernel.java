@@ -4,8 +4,11 @@ import java.io.IOException;
 import java.util.zip.DataFormatException;
 
 import nachos.machine.Coff;
+import nachos.machine.Config;
+import nachos.machine.InvertedPageTable;
 import nachos.machine.Lib;
 import nachos.machine.Machine;
+import nachos.machine.MemoryUsage;
 import nachos.machine.Processor;
 import nachos.threads.KThread;
 import nachos.threads.ThreadedKernel;
@@ -31,6 +34,11 @@ public class UserKernel extends ThreadedKernel {
 
         console = new SynchConsole(Machine.console());
 
+        invertedPageTable = new InvertedPageTable(Machine.processor().getNumPhysPages());
+        memoryUsage = new MemoryUsage();
+        textPageCache = new TextPageCache(memoryUsage);
+        coffCache = new CoffCache();
+
         Machine.processor().setExceptionHandler(new Runnable() {
             @Override
             public void run() {
@@ -48,11 +56,16 @@ public class UserKernel extends ThreadedKernel {
     }
 
     /**
-     * Test the console device.
+     * Test the console device. If <tt>SynchConsole.benchmarkBytes</tt> is set in
+     * <tt>nachos.conf</tt>, also times writing that many bytes to it.
      */
     @Override
     public void selfTest() {
         // super.selfTest(); Not necessary to test threaded kernel for now
+
+        int benchmarkBytes = Config.getInteger("SynchConsole.benchmarkBytes", 0);
+        if (benchmarkBytes > 0)
+            console.benchmark(benchmarkBytes);
     	
     	// Disable console testing for now.
         /* System.out.println("Testing the console device. Typed characters");
@@ -121,16 +134,30 @@ public class UserKernel extends ThreadedKernel {
     }
 
     /**
-     * Terminate this kernel. Never returns.
+     * Terminate this kernel, once everything written to the console has been sent. Never
+     * returns.
      */
     @Override
     public void terminate() {
+        console.drain();
         super.terminate();
     }
 
     /** Globally accessible reference to the synchronized console. */
     public static SynchConsole console;
 
+    /** Globally accessible reference to the frame-to-page mapping of all processes. */
+    public static InvertedPageTable invertedPageTable;
+
+    /** Globally accessible reference to the record of which physical frames are in use. */
+    public static MemoryUsage memoryUsage;
+
+    /** Globally accessible reference to the executable text shared by all processes. */
+    public static TextPageCache textPageCache;
+
+    /** Globally accessible reference to the headers of executables already loaded. */
+    public static CoffCache coffCache;
+
     // dummy variables to make javac smarter
     private static Coff dummy1 = null;
 }
@@ -1,25 +1,33 @@
 package nachos.userprog;
 
-import java.io.EOFException;
 import java.io.IOException;
 import java.lang.reflect.Array;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.zip.DataFormatException;
 
 import nachos.machine.Coff;
 import nachos.machine.CoffSection;
 import nachos.machine.CompressMemBlock;
 import nachos.machine.Config;
+import nachos.machine.InvertedPageTable;
+import nachos.machine.Kernel;
 import nachos.machine.Lib;
 import nachos.machine.Machine;
 import nachos.machine.MemoryUsage;
 import nachos.machine.OpenFile;
+import nachos.machine.PackedPageTable;
 import nachos.machine.Processor;
 import nachos.machine.TranslationEntry;
+import nachos.threads.KThread;
+import nachos.threads.Semaphore;
 import nachos.threads.ThreadedKernel;
 
 /**
@@ -39,8 +47,15 @@ public class UserProcess {
      * Allocate a new process.
      */
     public UserProcess() {
-        pageTable = new TranslationEntry[numVirtualPages];
-        memoryUsage = new MemoryUsage();
+        pageTable = new PackedPageTable(numVirtualPages);
+        memoryUsage = UserKernel.memoryUsage;
+        textPageCache = UserKernel.textPageCache;
+        pid = nextPid++;
+
+        fileTable[STDIN_FILENO] = new FileDescriptor(UserKernel.console.openForReading(), false, 0);
+        fileTable[STDOUT_FILENO] = new FileDescriptor(UserKernel.console.openForWriting(), false, 0);
+        fileTable[STDERR_FILENO] = fileTable[STDOUT_FILENO];
+        fileTable[STDERR_FILENO].retain();
     }
 
     /**
@@ -71,6 +86,10 @@ public class UserProcess {
             return false;
         }
 
+        if (rootProcess == null)
+            rootProcess = this;
+        runningProcesses.put(pid, this);
+
         new UThread(this).setName(name).fork();
 
         return true;
@@ -85,10 +104,13 @@ public class UserProcess {
 
     /**
      * Restore the state of this process after a context switch. Called by
-     * <tt>UThread.restoreState()</tt>.
+     * <tt>UThread.restoreState()</tt>. Switching address spaces only swaps the processor's page
+     * table pointer; nothing is copied.
      */
     public void restoreState() {
-        Machine.processor().setPageTable(pageTable);
+        Processor processor = Machine.processor();
+        if (processor.getPackedPageTable() != pageTable)
+            processor.setPageTable(pageTable);
     }
 
     /**
@@ -157,12 +179,10 @@ public class UserProcess {
         int firstOffset = Processor.offsetFromAddress(vaddr);
         int lastVPN = Processor.pageFromAddress(vaddr + length - 1);
 
-        TranslationEntry entry = getPageTableEntry(firstVPN, false);
-
-        if (entry == null) {
+        if (!checkPageTableEntry(firstVPN, false)) {
             return 0;
         }
-        if (!entry.valid) {
+        if (!pageTable.isValid(firstVPN)) {
         	try {
         		handlePageFault(vaddr);
         	} catch (Exception e) {
@@ -172,15 +192,14 @@ public class UserProcess {
 
         // load the first page ( not start at offset=0)
         int amount = Math.min(length, pageSize - firstOffset);
-        System.arraycopy(memory, Processor.makeAddress(entry.ppn, firstOffset),
+        System.arraycopy(memory, Processor.makeAddress(pageTable.getPPN(firstVPN), firstOffset),
                 data, offset, amount);
         offset += amount;
 
         for (int i = firstVPN + 1; i <= lastVPN; i++) {
-            entry = getPageTableEntry(i, false);
-            if (entry == null)
+            if (!checkPageTableEntry(i, false))
                 return amount;
-            if (!entry.valid) {
+            if (!pageTable.isValid(i)) {
             	try {
             		handlePageFault(Processor.makeAddress(i, 0));
             	} catch (Exception e) {
@@ -188,7 +207,7 @@ public class UserProcess {
             	}
             }
             int len = Math.min(length - amount, pageSize);
-            System.arraycopy(memory, Processor.makeAddress(entry.ppn, 0), data,
+            System.arraycopy(memory, Processor.makeAddress(pageTable.getPPN(i), 0), data,
                     offset, len);
             offset += len;
             amount += len;
@@ -231,37 +250,101 @@ public class UserProcess {
             int length) {
         Lib.assertTrue(offset >= 0 && length >= 0 && offset + length <= data.length);
 
+        // every page is checked like a store by the process would be: read-only pages stop the
+        // transfer, and pages shared copy-on-write are copied first
+        SegmentList segments = new SegmentList();
+        int amount = gatherSegments(vaddr, length, true, segments);
+
         byte[] memory = Machine.processor().getMemory();
+        for (int i = 0; i < segments.size(); i++) {
+            System.arraycopy(data, offset, memory, segments.getAddress(i), segments.getLength(i));
+            offset += segments.getLength(i);
+        }
 
-        int firstVPN = Processor.pageFromAddress(vaddr);
-        int firstOffset = Processor.offsetFromAddress(vaddr);
-        int lastVPN = Processor.pageFromAddress(vaddr + length - 1);
+        releaseSegments(segments);
+        return amount;
+    }
+
+    /**
+     * Copy one page of <i>data</i>, starting at <i>offset</i>, into frame <i>ppn</i>. Used to fill
+     * a frame the kernel has just given a page, before the process can see it, so none of the
+     * checks of <tt>writeVirtualMemory()</tt> apply.
+     */
+    private void fillFrame(int ppn, byte[] data, int offset) {
+        System.arraycopy(data, offset, Machine.processor().getMemory(),
+                Processor.makeAddress(ppn, 0), pageSize);
+    }
 
-        TranslationEntry entry = pageTable[firstVPN];
+    /**
+     * Translate the virtual address range <i>vaddr</i> through <i>vaddr+length-1</i> into runs of
+     * contiguous physical memory, so that a large transfer can be done with one copy per run
+     * instead of one per page. Non-resident pages are faulted in, and every frame in the range is
+     * pinned so that a fault taken for a later page cannot evict an earlier one. The caller must
+     * pass <i>segments</i> to <tt>releaseSegments()</tt> once it is done with the memory.
+     *
+     * <p>
+     * Like <tt>readVirtualMemory()</tt>, this stops early rather than failing if part of the range
+     * is not accessible.
+     *
+     * @param vaddr
+     *            the first byte of virtual memory in the range.
+     * @param length
+     *            the number of bytes in the range.
+     * @param writing
+     *            <tt>true</tt> if the kernel is going to write to the range.
+     * @param segments
+     *            the list to fill in; any previous contents are discarded.
+     * @return the number of bytes covered, starting at <i>vaddr</i>.
+     */
+    protected int gatherSegments(int vaddr, int length, boolean writing, SegmentList segments) {
+        Lib.assertTrue(length >= 0);
+        segments.clear();
 
-        if (entry == null) {
+        if (vaddr < 0)
             return 0;
-        }
 
-        int amount = Math.min(length, pageSize - firstOffset);
-        System.arraycopy(data, offset, memory, Processor.makeAddress(entry.ppn,
-                firstOffset), amount);
-        offset += amount;
+        InvertedPageTable ipt = UserKernel.invertedPageTable;
+        int amount = 0;
 
-        for (int i = firstVPN + 1; i <= lastVPN; i++) {
-            entry = getPageTableEntry(i, true);
-            if (entry == null)
-                return amount;
-            int len = Math.min(length - amount, pageSize);
-            System.arraycopy(data, offset, memory, Processor.makeAddress(
-                    entry.ppn, 0), len);
-            offset += len;
+        while (amount < length) {
+            int vpn = Processor.pageFromAddress(vaddr + amount);
+            int pageOffset = Processor.offsetFromAddress(vaddr + amount);
+
+            if (vpn >= pageTable.getNumPages())
+                break;
+            if (!pageTable.isValid(vpn)) {
+                try {
+                    if (!handlePageFault(Processor.makeAddress(vpn, 0)))
+                        break;
+                } catch (Exception e) {
+                    Lib.assertNotReached("Fail to handle page fault");
+                }
+            }
+            if (!checkPageTableEntry(vpn, writing))
+                break;
+
+            int ppn = pageTable.getPPN(vpn);
+            ipt.pin(ppn);
+            segments.addPinned(ppn);
+
+            int len = Math.min(length - amount, pageSize - pageOffset);
+            segments.add(Processor.makeAddress(ppn, pageOffset), len);
             amount += len;
         }
 
         return amount;
     }
 
+    /**
+     * Unpin the frames pinned by <tt>gatherSegments()</tt> and empty <i>segments</i>.
+     */
+    protected void releaseSegments(SegmentList segments) {
+        InvertedPageTable ipt = UserKernel.invertedPageTable;
+        for (int i = 0; i < segments.getNumPinned(); i++)
+            ipt.unpin(segments.getPinned(i));
+        segments.clear();
+    }
+
     /**
      * Transfer data from this process's compressed memory to the specified array. This method must
      * <i>not</i> destroy the current process if an error occurs, but instead should return the
@@ -317,32 +400,33 @@ public class UserProcess {
     /**
      * Check pageTable entry availability and update status for reading or writing vm
      * */
-    protected TranslationEntry getPageTableEntry(int vpn, boolean isWrite) {
+    protected boolean checkPageTableEntry(int vpn, boolean isWrite) {
         // out of virtual memory range
         if (vpn < 0 || vpn >= numPages) {
             Lib.debug(dbgProcess, "\tVPN out of range");
-            return null;
+            return false;
         }
 
-        TranslationEntry entry = pageTable[vpn];
         // non-initialized page table entry
-        if (entry == null) {
+        if (!pageTable.isAllocated(vpn)) {
             Lib.debug(dbgProcess, "\tNon-initialized table entry");
-            return null;
+            return false;
+        }
+
+        // first write to a page shared after a fork
+        if (isWrite && pageTable.isCopyOnWrite(vpn) && !copyOnWrite(vpn)) {
+            Lib.debug(dbgProcess, "\tNo memory to copy page");
+            return false;
         }
 
         // write to readOnly page
-        if (entry.readOnly && isWrite) {
+        if (pageTable.isReadOnly(vpn) && isWrite) {
             Lib.debug(dbgProcess, "\tWrite to read-only page");
-            return null;
+            return false;
         }
-        // set page to used
-        entry.used = true;
-
-        // if write, set dirty bit true
-        if (isWrite)
-            entry.dirty = true;
-        return entry;
+        // set page to used, and dirty if write
+        pageTable.touch(vpn, isWrite);
+        return true;
     }
 
     @Deprecated
@@ -353,19 +437,18 @@ public class UserProcess {
             System.out.println("pageTable is not initialized");
             return -1;
         }
-        if (vPageNumber >= pageTable.length) {
+        if (vPageNumber >= pageTable.getNumPages()) {
             System.out.println("Requested a page number (" + vPageNumber
-                    + ") outside the page mapping (" + pageTable.length + " total)");
+                    + ") outside the page mapping (" + pageTable.getNumPages() + " total)");
             return -1;
         }
-        TranslationEntry translationEntry = pageTable[vPageNumber];
-        if (null == translationEntry) {
+        if (!pageTable.isAllocated(vPageNumber)) {
             // TODO: bus error? page fault?
             System.out.println("Unmapped page table entry for VPN " + vPageNumber);
             return -1;
         }
         // TODO: validity check?
-        int pPageNumber = translationEntry.ppn;
+        int pPageNumber = pageTable.getPPN(vPageNumber);
 
         if (pageAddress < 0 || pageAddress >= Processor.pageSize) {
             System.out.println("bogus pageAddress: " + pageAddress);
@@ -389,26 +472,20 @@ public class UserProcess {
     private boolean load(String name, String[] args) {
         Lib.debug(dbgProcess, "UserProcess.load(\"" + name + "\")");
 
-        OpenFile executable = ThreadedKernel.fileSystem.open(name, false);
-        if (executable == null) {
-            Lib.debug(dbgProcess, "\topen failed");
+        int version = textPageCache.getVersion(name);
+        coff = UserKernel.coffCache.open(name, version);
+        if (coff == null)
             return false;
-        }
-
-        try {
-            coff = new Coff(executable);
-        } catch (EOFException e) {
-            executable.close();
-            Lib.debug(dbgProcess, "\tcoff load failed");
-            return false;
-        }
+        executableName = name;
+        executableVersion = version;
+        textPageCache.startRunning(name);
 
         // make sure the sections are contiguous and start at page 0
         numPages = 0;
         for (int s = 0; s < coff.getNumSections(); s++) {
             CoffSection section = coff.getSection(s);
             if (section.getFirstVPN() != numPages) {
-                coff.close();
+                closeExecutable();
                 Lib.debug(dbgProcess, "\tfragmented executable");
                 return false;
             }
@@ -426,7 +503,7 @@ public class UserProcess {
             argsSize += 4 + argv[i].length + 1;
         }
         if (argsSize > pageSize) {
-            coff.close();
+            closeExecutable();
             Lib.debug(dbgProcess, "\targuments too long");
             return false;
         }
@@ -445,7 +522,17 @@ public class UserProcess {
         if (!loadSections())
             return false;
 
-        // Does not initialize stack pages here, they are loaded on demand
+        int argsPPN = memoryUsage.allocatePageInUncomp();
+        if (argsPPN == -1 && reclaimFrames(memoryUsage, 1))
+            argsPPN = memoryUsage.allocatePageInUncomp();
+        if (argsPPN == -1) {
+            unloadSections();
+            Lib.debug(dbgProcess, "\tinsufficient uncompressed memory");
+            return false;
+        }
+        memoryUsage.setPage(argsPPN);
+
+        // Does not initialize program and stack pages here, they are loaded on demand
 
         // store arguments after program
         int entryOffset = (numPages - 1) * pageSize;
@@ -457,9 +544,11 @@ public class UserProcess {
 
         // Load arguments
         // update page table entry for argument page
-        pageTable[numPages - 1] = new TranslationEntry(numPages - 1, programPages, true, false,
+        pageTable.set(numPages - 1, argsPPN, true, false,
                 false,
                 false, false, -1, null);
+        mapPage(numPages - 1, argsPPN);
+        numAllocatedPages++;
         for (int i = 0; i < argv.length; i++) {
             byte[] stringOffsetBytes = Lib.bytesFromInt(stringOffset);
             // write the
@@ -472,34 +561,20 @@ public class UserProcess {
             stringOffset += 1;
         }
         // set read-only to true
-        pageTable[numPages - 1].readOnly = true;
-        memoryUsage.setPage(programPages);
+        pageTable.setReadOnly(numPages - 1, true);
 
         return true;
     }
 
     /**
-     * Allocates memory for this process, and loads the COFF sections into memory. If this returns
-     * successfully, the process will definitely be run (this is the last step in process
-     * initialization that can fail).
+     * Set up the page table entries for the COFF sections. No page is read yet: each is loaded
+     * from the executable the first time it is touched, so a program starts at once however
+     * large it is, and need not fit in physical memory. If this returns successfully, the process
+     * will definitely be run (this is the last step in process initialization that can fail).
      *
      * @return <tt>true</tt> if the sections were successfully loaded.
      */
     protected boolean loadSections() {
-        // preload program and argument into uncompressed memory. If not fit, throw error.
-        if (programPages + 1 > Machine.processor().getNumPhysPages()) {
-            coff.close();
-            Lib.debug(dbgProcess, "\tinsufficient uncompressed memory");
-            return false;
-        }
-
-        // initialize first programPages entries in page table. vpn = ppn
-        for (int i = 0; i < programPages; i++) {
-            pageTable[i] = new TranslationEntry(i, i, true, true,
-                    false, false, false, -1, null);
-        }
-
-        // load sections
         for (int s = 0; s < coff.getNumSections(); s++) {
             CoffSection section = coff.getSection(s);
 
@@ -507,105 +582,183 @@ public class UserProcess {
                     + " section (" + section.getLength() + " pages)");
 
             for (int i = 0; i < section.getLength(); i++) {
-                int vpn = section.getFirstVPN() + i;
-                // load page to physical memory
-                section.loadPage(i, pageTable[vpn].ppn);
-                pageTable[vpn].readOnly = section.isReadOnly();
-                memoryUsage.setPage(pageTable[vpn].ppn);
+                pageTable.set(section.getFirstVPN() + i, -1, false, section.isReadOnly(),
+                        false, false, false, -1, null);
             }
         }
+        numAllocatedPages += programPages;
 
         return true;
     }
 
-    @Deprecated
-    public boolean loadSectionToCombinedMem() {
-        int numPhysicalPages = Machine.processor().getNumPhysPages();
-        int numUncompressedPages = numPhysicalPages / (memoryDivideRatio + 1);
-        int numCompressedPages = numPhysicalPages - numUncompressedPages;
-        int compressMemStartPPN = numUncompressedPages;
-        boolean uncompressedMemFull = false;
-        boolean compressedMemFull = false;
-
-        pageTable = new TranslationEntry[numPages];
-
+    /**
+     * Return the section of the executable holding program page <i>vpn</i>.
+     */
+    private CoffSection getSection(int vpn) {
         for (int s = 0; s < coff.getNumSections(); s++) {
             CoffSection section = coff.getSection(s);
-            int sectionLen = section.getLength();
+            if (vpn >= section.getFirstVPN() && vpn < section.getFirstVPN() + section.getLength())
+                return section;
+        }
 
-            Lib.debug(dbgProcess, "\tinitializing " + section.getName()
-                    + " section (" + section.getLength() + " pages)");
+        Lib.assertNotReached("no section holds page " + vpn);
+        return null;
+    }
 
-            int availUncompressedPages = 5; // (TODO) get it from memory usage tracking
-                                            // functions
-            if (!uncompressedMemFull && (availUncompressedPages - sectionLen > numReservedPages)) {
-                // load to uncompressed memory
-                for (int i = 0; i < sectionLen; i++) {
-                    int vpn = section.getFirstVPN() + i;
-                    int ppn = 0; // (TODO) get ppn from memory usage tracking function
-                    pageTable[vpn] = new TranslationEntry(vpn, ppn, true, true,
-                            false, false, false, -1, null);
-                    // load page to physical memory
-                    section.loadPage(i, ppn);
+    /**
+     * Fill frame <i>ppn</i> with the initial contents of page <i>vpn</i>: a program page is read
+     * from the executable, and any other page is zeroed.
+     */
+    private void fillPage(int vpn, int ppn) {
+        if (vpn < programPages) {
+            CoffSection section = getSection(vpn);
+            section.loadPage(vpn - section.getFirstVPN(), ppn);
+            Machine.getStats().numCoffPageLoads++;
+        } else {
+            byte[] memory = Machine.processor().getMemory();
+            Arrays.fill(memory, Processor.makeAddress(ppn, 0), Processor.makeAddress(ppn + 1, 0),
+                    (byte) 0);
+        }
+    }
+
+    /**
+     * Give page <i>vpn</i> the free frame <i>ppn</i> and its initial contents. Reading from the
+     * executable may put this thread to sleep, so the frame is claimed and pinned first, where no
+     * other process can take it.
+     */
+    private void loadNewPage(int vpn, int ppn, boolean readOnly) {
+        memoryUsage.setPage(ppn);
+        pageTable.set(vpn, ppn, true, readOnly, false, false, false, -1, null);
+        mapPage(vpn, ppn);
+
+        InvertedPageTable ipt = UserKernel.invertedPageTable;
+        ipt.pin(ppn);
+        fillPage(vpn, ppn);
+        ipt.unpin(ppn);
+    }
+
+    /**
+     * If page <i>vpn</i>, just loaded, is text, offer it to the text page cache. Once cached, the
+     * frame belongs to the cache rather than to this process, so it leaves the inverted page
+     * table.
+     */
+    private void cacheText(int vpn) {
+        if (!isDiscardable(vpn))
+            return;
+
+        if (textPageCache.insert(executableName, executableVersion, vpn, pageTable.getPPN(vpn),
+                this))
+            unmapPage(vpn);
+    }
+
+    /**
+     * Test whether page <i>vpn</i> can be evicted by just dropping it: a page of a read-only
+     * section is always clean, and can be read from the executable again.
+     */
+    private boolean isDiscardable(int vpn) {
+        return vpn < programPages && pageTable.isReadOnly(vpn) && !pageTable.isCopyOnWrite(vpn);
+    }
+
+    /**
+     * Look at up to <i>count</i> victims, and evict the clean program pages among them without
+     * compressing them: their frames are freed, and they will be read from the executable again
+     * when next touched.
+     *
+     * @return the number of frames freed.
+     */
+    private int dropCleanPages(int count) {
+        int dropped = 0;
+        for (Integer vpn : findVictims(count)) {
+            if (!isDiscardable(vpn))
+                continue;
+
+            memoryUsage.releasePage(pageTable.getPPN(vpn));
+            unmapPage(vpn);
+            pageTable.set(vpn, -1, false, true, false, false, false, -1, null);
+            dropped++;
+        }
+        Machine.getStats().numCleanPagesDropped += dropped;
+        return dropped;
+    }
+
+    /**
+     * Unmap page <i>vpn</i>, which maps a frame the text page cache is evicting, so that it is
+     * looked up again the next time it is touched. The process need not be the current one.
+     */
+    void dropCachedPage(int vpn) {
+        memoryUsage.releasePage(pageTable.getPPN(vpn));
+        pageTable.set(vpn, -1, false, true, false, false, false, -1, null);
+    }
+
+    /**
+     * Release any resources allocated by <tt>loadSections()</tt>, and every page the process has
+     * allocated since: resident frames go back to the pool, and so do the compressed frames of any
+     * block holding its swapped-out pages.
+     */
+    protected void unloadSections() {
+        Set<CompressMemBlock> blocks = new HashSet<CompressMemBlock>();
+
+        for (int vpn = 0; vpn < pageTable.getNumPages(); vpn++) {
+            if (pageTable.isValid(vpn)) {
+                textPageCache.unmap(pageTable.getPPN(vpn), this);
+                memoryUsage.releasePage(pageTable.getPPN(vpn));
+            } else if (pageTable.isCompressed(vpn)) {
+                CompressMemBlock block = pageTable.getCompressMemBlock(vpn);
+                // (null if the process died swapping the block in)
+                if (block != null && blocks.add(block)) {
+                    for (int i = 0; i < getCompressedPages(block); i++)
+                        memoryUsage.releasePage(block.startPPN + i);
                 }
+            }
+            pageTable.clear(vpn);
+        }
+
+        UserKernel.invertedPageTable.removeProcess(pid);
+        numAllocatedPages = 0;
+        pageContentBeforeCompression.clear();
+
+        closeExecutable();
+    }
+
+    /**
+     * Close the executable. Pages not yet read from it can no longer be, so it may be changed
+     * again once no other process is running it.
+     */
+    private void closeExecutable() {
+        coff.close();
+        textPageCache.stopRunning(executableName);
+    }
+
+    /**
+     * Free uncompressed frames until at least <i>needed</i> of them are free. Cached executable
+     * text the current process is not using goes first. After that, pages of running processes
+     * are swapped out to compressed memory: the process owning the frame found first, from a
+     * random starting point, gives up a block's worth of pages each time. The current process's
+     * own text is evicted last.
+     *
+     * @return <tt>true</tt> if enough frames are free.
+     */
+    private static boolean reclaimFrames(MemoryUsage memoryUsage, int needed) {
+        InvertedPageTable ipt = UserKernel.invertedPageTable;
+        TextPageCache textPageCache = UserKernel.textPageCache;
+
+        while (memoryUsage.findMultiPagesUncomp(needed).size() < needed) {
+            if (textPageCache.evict(needed, UserKernel.currentProcess()) > 0)
                 continue;
+
+            UserProcess owner = null;
+            int start = Lib.random(compressMemStartPage);
+            for (int i = 0; i < compressMemStartPage && owner == null; i++) {
+                int ppn = (start + i) % compressMemStartPage;
+                if (!ipt.isPinned(ppn) && memoryUsage.getReferenceCount(ppn) == 1)
+                    owner = runningProcesses.get(ipt.getOwnerPid(ppn));
             }
-            System.out.println("Loaded " + (numUncompressedPages - availUncompressedPages)
-                    + " pages to uncompressed memory");
-
-            uncompressedMemFull = true;
-
-            // (TODO) load section to compressed memory
-            int availCompressedPages = 10; // (TODO) get it from memory usage function
-            // get number of pages for compression
-            byte[] compressBuf = new byte[compressedBlockPages * pageSize];
-
-            // starting section page offset for compressionBlockPages
-            int spn = 0;
-            if (!compressedMemFull && (availCompressedPages - sectionLen > numReservedPages)) {
-                for (int i = 0; i < sectionLen; i += compressedBlockPages) {
-                    int vpn = section.getFirstVPN() + i;
-                    // if left number of pages in section < default compressedBlockPages
-                    int numPageLoadToBuf = Math.min(compressedBlockPages, sectionLen - i);
-
-                    section.loadPagesToCompressBuf(spn, numPageLoadToBuf, compressBuf);
-                    spn += numPageLoadToBuf;
-
-                    // (TODO) call compression function, return byte array of compressed data
-                    byte[] compressedBlock = null;
-                    int pageUsed = (compressedBlock.length / pageSize)
-                            + (compressedBlock.length % pageSize == 0 ? 0 : 1);
-
-                    // (TODO) get available consecutive pages in compressed memory, return the first
-                    // ppn
-                    // how about if cannot find consecutive pages
-                    int ppn = 0;
-                    if (ppn == -1) {
-                        System.out.println("No "
-                                + pageUsed + " consecutive pages in compressed memory available.");
-                        break;
-                    }
-
-                    // create CompressMemBlock
-                    CompressMemBlock cmb = new CompressMemBlock();
-                    cmb.startPPN = ppn;
-                    cmb.compressedByte = compressedBlock.length;
-                    // cmb.setVPNList(vpn, numPageLoadToBuf);
-
-                    // Add pageTable entries for pages in compressed page block
-                    for (int j = 0; j < numPageLoadToBuf; j++) {
-                        ppn += j;
-                        pageTable[vpn] = new TranslationEntry(vpn, ppn, true, true,
-                                false, false, true, j, cmb);
-                        vpn++;
-                    }
-
-                    // load compressed page to physical memory
-                    Lib.assertTrue(writeVirtualMemory(cmb.startPPN, compressedBlock) == cmb.compressedByte);
-                }
-            } else {
-                compressedMemFull = true;
-                System.out.println("Load compressed memory error: Not enough space");
+
+            try {
+                if ((owner == null || owner.swapOut(compressedBlockPages) == 0)
+                        && textPageCache.evict(needed, null) == 0)
+                    return false;
+            } catch (IOException e) {
                 return false;
             }
         }
@@ -613,9 +766,60 @@ public class UserProcess {
     }
 
     /**
-     * Release any resources allocated by <tt>loadSections()</tt>.
+     * Compress up to <i>count</i> of this process's resident pages into one block and give their
+     * frames back, or just drop them if they are clean program pages. The process need not be the
+     * current one.
+     *
+     * @return the number of frames freed.
      */
-    protected void unloadSections() {
+    private int swapOut(int count) throws IOException {
+        int dropped = dropCleanPages(count);
+        if (dropped > 0)
+            return dropped;
+
+        CompressMemBlock block = pageFaultHelper(count);
+        if (block == null)
+            return 0;
+
+        for (int offsetInBlock = 0; offsetInBlock < block.vpnList.size(); offsetInBlock++) {
+            int vpn = block.vpnList.get(offsetInBlock);
+            unmapPage(vpn);
+            pageTable.setSwappedOut(vpn, offsetInBlock, block);
+        }
+        return block.vpnList.size();
+    }
+
+    /**
+     * Slide every compressed block, of every process, down to the start of compressed memory, so
+     * that its free frames form a single run at the end.
+     */
+    private static void compactCompressedMemory(MemoryUsage memoryUsage) {
+        List<CompressMemBlock> blocks = PackedPageTable.getCompressMemBlocks();
+        Collections.sort(blocks, new Comparator<CompressMemBlock>() {
+            @Override
+            public int compare(CompressMemBlock a, CompressMemBlock b) {
+                return Integer.compare(a.startPPN, b.startPPN);
+            }
+        });
+
+        byte[] memory = Machine.processor().getMemory();
+        int nextPPN = compressMemStartPage;
+        for (CompressMemBlock block : blocks) {
+            int frames = getCompressedPages(block);
+            if (block.startPPN != nextPPN) {
+                System.arraycopy(memory, Processor.makeAddress(block.startPPN, 0), memory,
+                        Processor.makeAddress(nextPPN, 0), block.compressedByte);
+                for (int i = 0; i < frames; i++)
+                    memoryUsage.movePage(block.startPPN + i, nextPPN + i);
+                block.startPPN = nextPPN;
+            }
+            nextPPN += frames;
+        }
+    }
+
+    /** Return the number of compressed-memory frames <i>block</i> occupies. */
+    private static int getCompressedPages(CompressMemBlock block) {
+        return block.compressedByte / pageSize + (block.compressedByte % pageSize == 0 ? 0 : 1);
     }
 
     /**
@@ -627,8 +831,16 @@ public class UserProcess {
     public void initRegisters() {
         Processor processor = Machine.processor();
 
+        // a forked child carries on from its parent's fork() call
+        if (forkRegisters != null) {
+            for (int i = 0; i < Processor.numUserRegisters; i++)
+                processor.writeRegister(i, forkRegisters[i]);
+            forkRegisters = null;
+            return;
+        }
+
         // by default, everything's 0
-        for (int i = 0; i < processor.numUserRegisters; i++)
+        for (int i = 0; i < Processor.numUserRegisters; i++)
             processor.writeRegister(i, 0);
 
         // initialize PC and SP according
@@ -641,16 +853,372 @@ public class UserProcess {
     }
 
     /**
-     * Handle the halt() system call.
+     * Handle the halt() system call. Only the first process may halt the machine; for any other,
+     * this returns immediately.
      */
     private int handleHalt() {
+        if (this != rootProcess)
+            return -1;
+
+        closeAllFiles();
 
-        Machine.halt();
+        Kernel.kernel.terminate();
 
         Lib.assertNotReached("Machine.halt() did not halt machine!");
         return 0;
     }
 
+    /**
+     * Handle the exit() system call.
+     */
+    private int handleExit(int status) {
+        exit(status, true);
+        return 0;
+    }
+
+    /**
+     * Terminate this process: close its files, give back all its memory, and let a parent joining
+     * it continue. When the last process exits, the kernel terminates. Never returns.
+     *
+     * @param status
+     *            the exit status.
+     * @param normal
+     *            <tt>false</tt> if the process is being killed because of an unhandled exception.
+     */
+    protected void exit(int status, boolean normal) {
+        Lib.debug(dbgProcess, "process " + pid + " exiting with status " + status);
+
+        closeAllFiles();
+        unloadSections();
+
+        // orphans can no longer be joined
+        children.clear();
+
+        exitStatus = status;
+        exitedNormally = normal;
+        exited.V();
+
+        runningProcesses.remove(pid);
+        if (runningProcesses.isEmpty())
+            Kernel.kernel.terminate();
+
+        KThread.finish();
+        Lib.assertNotReached();
+    }
+
+    /**
+     * Handle the exec() system call: run the program <i>name</i> with the <i>argc</i> arguments
+     * pointed to by <i>argvVaddr</i> in a new child process.
+     *
+     * @return the child's process ID, or -1 on error.
+     */
+    private int handleExec(int nameVaddr, int argc, int argvVaddr) {
+        String name = readVirtualMemoryString(nameVaddr, maxFileNameLength);
+        if (name == null || !name.endsWith(".coff") || argc < 0)
+            return -1;
+
+        String[] args = new String[argc];
+        byte[] pointer = new byte[4];
+        for (int i = 0; i < argc; i++) {
+            if (readVirtualMemory(argvVaddr + i * 4, pointer) != 4)
+                return -1;
+            args[i] = readVirtualMemoryString(Lib.bytesToInt(pointer, 0), maxArgLength);
+            if (args[i] == null)
+                return -1;
+        }
+
+        UserProcess child = newUserProcess();
+        if (!child.execute(name, args))
+            return -1;
+
+        children.put(child.pid, child);
+        return child.pid;
+    }
+
+    /**
+     * Handle the join() system call: wait for child <i>childPid</i> to exit, and store its exit
+     * status at <i>statusVaddr</i>. A child can only be joined once.
+     *
+     * @return 1 if the child exited normally, 0 if it was killed, or -1 if <i>childPid</i> is not
+     *         a child of this process or its status cannot be stored at <i>statusVaddr</i>.
+     */
+    private int handleJoin(int childPid, int statusVaddr) {
+        UserProcess child = children.remove(childPid);
+        if (child == null)
+            return -1;
+
+        child.exited.P();
+
+        if (!child.exitedNormally)
+            return 0;
+
+        if (writeVirtualMemory(statusVaddr, Lib.bytesFromInt(child.exitStatus)) != 4)
+            return -1;
+        return 1;
+    }
+
+    /**
+     * Handle the fork() system call: start a child running a copy of this process, sharing its
+     * open files. Nothing is copied up front. Resident pages are shared copy-on-write: both
+     * processes map the same frame read-only, and the first to write gets its own copy. Swapped-out
+     * pages share the parent's compressed blocks, since a block is decompressed into private
+     * frames anyway.
+     *
+     * @return the child's process ID in the parent, 0 in the child, or -1 on error.
+     */
+    private int handleFork() {
+        Coff childCoff = UserKernel.coffCache.open(executableName, executableVersion);
+        if (childCoff == null)
+            return -1;
+
+        UserProcess child = newUserProcess();
+        child.coff = childCoff;
+        child.executableName = executableName;
+        child.executableVersion = executableVersion;
+        textPageCache.startRunning(executableName);
+        child.numPages = numPages;
+        child.programPages = programPages;
+        child.numAllocatedPages = numAllocatedPages;
+        child.initialPC = initialPC;
+        child.initialSP = initialSP;
+        child.argc = argc;
+        child.argv = argv;
+
+        Set<CompressMemBlock> blocks = new HashSet<CompressMemBlock>();
+        for (int vpn = 0; vpn < pageTable.getNumPages(); vpn++) {
+            if (!pageTable.isAllocated(vpn))
+                continue;
+
+            if (pageTable.isValid(vpn)) {
+                int ppn = pageTable.getPPN(vpn);
+                memoryUsage.addReference(ppn);
+                textPageCache.share(ppn, child);
+                if (!pageTable.isReadOnly(vpn)) {
+                    pageTable.setReadOnly(vpn, true);
+                    pageTable.setCopyOnWrite(vpn, true);
+                }
+                child.pageTable.set(vpn, ppn, true, true, false, false, false, -1, null);
+                child.pageTable.setCopyOnWrite(vpn, pageTable.isCopyOnWrite(vpn));
+            } else if (pageTable.isCompressed(vpn)) {
+                CompressMemBlock block = pageTable.getCompressMemBlock(vpn);
+                child.pageTable.set(vpn, -1, false, pageTable.isReadOnly(vpn), false, false, true,
+                        pageTable.getCompressOffset(vpn), block);
+                if (blocks.add(block)) {
+                    for (int i = 0; i < getCompressedPages(block); i++)
+                        memoryUsage.addReference(block.startPPN + i);
+                }
+            } else {
+                child.pageTable.set(vpn, -1, false, pageTable.isReadOnly(vpn), false, false,
+                        false, -1, null);
+            }
+        }
+        child.pageContentBeforeCompression.putAll(pageContentBeforeCompression);
+
+        for (int fd = 0; fd < fileTable.length; fd++) {
+            if (child.fileTable[fd] != null)
+                child.fileTable[fd].close();
+            child.fileTable[fd] = fileTable[fd];
+            if (fileTable[fd] != null)
+                fileTable[fd].retain();
+        }
+
+        Processor processor = Machine.processor();
+        child.forkRegisters = new int[Processor.numUserRegisters];
+        for (int i = 0; i < Processor.numUserRegisters; i++)
+            child.forkRegisters[i] = processor.readRegister(i);
+        child.forkRegisters[Processor.regV0] = 0;
+        child.forkRegisters[Processor.regPC] = processor.readRegister(Processor.regNextPC);
+
+        Machine.getStats().numForks++;
+
+        runningProcesses.put(child.pid, child);
+        children.put(child.pid, child);
+        new UThread(child).setName(executableName).fork();
+
+        return child.pid;
+    }
+
+    /**
+     * Give this process its own copy of copy-on-write page <i>vpn</i>, so that it can write to
+     * it. If no other process shares the frame any more, the page just becomes writable.
+     *
+     * @return <tt>false</tt> if there was no memory for the copy.
+     */
+    private boolean copyOnWrite(int vpn) {
+        int ppn = pageTable.getPPN(vpn);
+
+        if (memoryUsage.getReferenceCount(ppn) > 1) {
+            // shared frames are never victims, so making room cannot take this one
+            int newPPN = memoryUsage.allocatePageInUncomp();
+            if (newPPN == -1 && reclaimFrames(memoryUsage, 1))
+                newPPN = memoryUsage.allocatePageInUncomp();
+            if (newPPN == -1)
+                return false;
+
+            memoryUsage.setPage(newPPN);
+            byte[] memory = Machine.processor().getMemory();
+            System.arraycopy(memory, Processor.makeAddress(ppn, 0), memory,
+                    Processor.makeAddress(newPPN, 0), pageSize);
+            memoryUsage.releasePage(ppn);
+
+            pageTable.setPPN(vpn, newPPN);
+            ppn = newPPN;
+            Machine.getStats().numCopyOnWrites++;
+        }
+
+        // take over the frame in the inverted page table, so it can be chosen as a victim
+        mapPage(vpn, ppn);
+        pageTable.setCopyOnWrite(vpn, false);
+        pageTable.setReadOnly(vpn, false);
+        return true;
+    }
+
+    /**
+     * Handle the creat() and open() system calls. <tt>creat()</tt> creates the file if it does not
+     * exist (the stub file system also truncates it); <tt>open()</tt> fails if it does not exist.
+     * <tt>creat()</tt> also fails on an executable some process is running, which reads pages from
+     * it on demand.
+     *
+     * @return the new file descriptor, or -1 on error.
+     */
+    private int handleOpen(int nameVaddr, boolean create) {
+        String name = readVirtualMemoryString(nameVaddr, maxFileNameLength);
+        if (name == null)
+            return -1;
+
+        int fd = -1;
+        for (int i = 0; i < fileTable.length; i++) {
+            if (fileTable[i] == null) {
+                fd = i;
+                break;
+            }
+        }
+        if (fd == -1)
+            return -1;
+        if (create && textPageCache.isRunning(name))
+            return -1;
+
+        OpenFile file = ThreadedKernel.fileSystem.open(name, create);
+        if (file == null)
+            return -1;
+        if (create)
+            textPageCache.invalidate(name);
+
+        fileTable[fd] = new FileDescriptor(file, true, fileBufferSize);
+        return fd;
+    }
+
+    /**
+     * Handle the read() system call. Bytes are copied from the file straight into the process's
+     * memory, one contiguous physical run at a time.
+     */
+    private int handleRead(int fd, int vaddr, int count) {
+        FileDescriptor file = getFileDescriptor(fd);
+        if (file == null || count < 0)
+            return -1;
+        if (file.isBuffered())
+            Machine.getStats().numReadCalls++;
+
+        byte[] memory = Machine.processor().getMemory();
+        if (gatherSegments(vaddr, count, true, ioSegments) < count) {
+            releaseSegments(ioSegments);
+            return -1;
+        }
+
+        int amount = 0;
+        for (int i = 0; i < ioSegments.size(); i++) {
+            int length = ioSegments.getLength(i);
+            int read = file.read(memory, ioSegments.getAddress(i), length);
+            if (read < 0) {
+                if (amount == 0)
+                    amount = -1;
+                break;
+            }
+            amount += read;
+            if (read < length)
+                break;
+        }
+
+        releaseSegments(ioSegments);
+        return amount;
+    }
+
+    /**
+     * Handle the write() system call. Bytes are sent to the file straight out of the process's
+     * memory, one contiguous physical run at a time.
+     */
+    private int handleWrite(int fd, int vaddr, int count) {
+        FileDescriptor file = getFileDescriptor(fd);
+        if (file == null || count < 0)
+            return -1;
+        if (file.isBuffered())
+            Machine.getStats().numWriteCalls++;
+
+        byte[] memory = Machine.processor().getMemory();
+        if (gatherSegments(vaddr, count, false, ioSegments) < count) {
+            releaseSegments(ioSegments);
+            return -1;
+        }
+
+        int amount = 0;
+        for (int i = 0; i < ioSegments.size(); i++) {
+            int length = ioSegments.getLength(i);
+            int written = file.write(memory, ioSegments.getAddress(i), length);
+            if (written < length) {
+                amount = -1;
+                break;
+            }
+            amount += written;
+        }
+
+        releaseSegments(ioSegments);
+        return amount;
+    }
+
+    /**
+     * Handle the close() system call, flushing anything this descriptor has buffered.
+     */
+    private int handleClose(int fd) {
+        FileDescriptor file = getFileDescriptor(fd);
+        if (file == null)
+            return -1;
+
+        fileTable[fd] = null;
+        file.close();
+        return 0;
+    }
+
+    /**
+     * Handle the unlink() system call. Fails on an executable some process is running.
+     */
+    private int handleUnlink(int nameVaddr) {
+        String name = readVirtualMemoryString(nameVaddr, maxFileNameLength);
+        if (name == null || textPageCache.isRunning(name))
+            return -1;
+
+        if (!ThreadedKernel.fileSystem.remove(name))
+            return -1;
+
+        textPageCache.invalidate(name);
+        return 0;
+    }
+
+    private FileDescriptor getFileDescriptor(int fd) {
+        if (fd < 0 || fd >= fileTable.length)
+            return null;
+        return fileTable[fd];
+    }
+
+    /**
+     * Close every descriptor, so that buffered writes reach the file system.
+     */
+    protected void closeAllFiles() {
+        for (int fd = 0; fd < fileTable.length; fd++) {
+            if (fileTable[fd] != null)
+                handleClose(fd);
+        }
+    }
+
     private static final int
             syscallHalt = 0,
             syscallExit = 1,
@@ -661,7 +1229,8 @@ public class UserProcess {
             syscallRead = 6,
             syscallWrite = 7,
             syscallClose = 8,
-            syscallUnlink = 9;
+            syscallUnlink = 9,
+            syscallFork = 13;
 
     /**
      * Handle a syscall exception. Called by <tt>handleException()</tt>. The <i>syscall</i> argument
@@ -715,6 +1284,10 @@ public class UserProcess {
      * <td>9</td>
      * <td><tt>int  unlink(char *name);</tt></td>
      * </tr>
+     * <tr>
+     * <td>13</td>
+     * <td><tt>int  fork();</tt></td>
+     * </tr>
      * </table>
      * 
      * @param syscall
@@ -730,29 +1303,31 @@ public class UserProcess {
      * @return the value to be returned to the user.
      */
     public int handleSyscall(int syscall, int a0, int a1, int a2, int a3) {
-        Lib.debug(dbgProcess,
-                String.format("handle syscall %d args: %d %d %d %d", syscall, a0, a1, a2, a3));
+        if (Lib.test(dbgProcess))
+            System.out.println(String.format("handle syscall %d args: %d %d %d %d", syscall, a0, a1, a2, a3));
         switch (syscall) {
         case syscallHalt:
             return handleHalt();
+        case syscallCreate:
+            return handleOpen(a0, true);
+        case syscallOpen:
+            return handleOpen(a0, false);
+        case syscallRead:
+            return handleRead(a0, a1, a2);
         case syscallWrite:
-            int fd = a0;
-            int startAddr = a1;
-            int count = a2;
-            if (fd == STDOUT_FILENO || fd == STDERR_FILENO) {
-                
-                byte[] buf = new byte[count];
-                readVirtualMemory(startAddr, buf);
-                
-                for (int i = 0; i < count; i++) {
-                    UserKernel.console.writeByte(buf[i]);
-                }
-                return count;
-            } else {
-                Lib.assertNotReached("Cannot handle write system call.");
-            }
+            return handleWrite(a0, a1, a2);
+        case syscallClose:
+            return handleClose(a0);
+        case syscallUnlink:
+            return handleUnlink(a0);
         case syscallExit:
-            return handleHalt();
+            return handleExit(a0);
+        case syscallExec:
+            return handleExec(a0, a1, a2);
+        case syscallJoin:
+            return handleJoin(a0, a1);
+        case syscallFork:
+            return handleFork();
         default:
             Lib.debug(dbgProcess, "Unknown syscall " + syscall);
             Lib.assertNotReached("Unknown system call!");
@@ -791,6 +1366,14 @@ public class UserProcess {
 
             } else {
                 Lib.debug(dbgProcess, "Unresolved page fault");
+                exit(-1, false);
+            }
+            break;
+        case Processor.exceptionReadOnly:
+            int vpn = Processor.pageFromAddress(processor.readRegister(Processor.regBadVAddr));
+            if (!pageTable.isCopyOnWrite(vpn) || !copyOnWrite(vpn)) {
+                Lib.debug(dbgProcess, "Write to read-only page");
+                exit(-1, false);
             }
             break;
         case Processor.exceptionOverflow:
@@ -799,7 +1382,7 @@ public class UserProcess {
         default:
             Lib.debug(dbgProcess, "Unexpected exception: " +
                     Processor.exceptionNames[cause]);
-            Lib.assertNotReached("Unexpected exception");
+            exit(-1, false);
         }
     }
 
@@ -807,7 +1390,8 @@ public class UserProcess {
     	StringBuffer sb = new StringBuffer();
     	sb.append("-----------\n");
     	String[] physMemStatus = new String[numPhysPages];
-    	for (TranslationEntry entry : pageTable) {
+    	for (int vpn = 0; vpn < pageTable.getNumPages(); vpn++) {
+    		TranslationEntry entry = pageTable.getEntry(vpn);
     		if (entry == null) {
     			continue;
     		}
@@ -815,8 +1399,7 @@ public class UserProcess {
     			Lib.assertTrue(physMemStatus[entry.ppn] == null, "phys page " + entry.ppn + " is used by more than one vpn!"
     					+ " current: " + physMemStatus[entry.ppn]);
     			physMemStatus[entry.ppn] = "[uncomp] Used by vpn " + entry.vpn;
-    		} else {
-    			Lib.assertTrue(entry.compressed && entry.compressMemBlock != null, "vpn " + entry.vpn + " is not valid and not compressed!");
+    		} else if (entry.compressed && entry.compressMemBlock != null) {
     			int physPages = entry.compressMemBlock.compressedByte % pageSize == 0 ? entry.compressMemBlock.compressedByte / pageSize :
     				entry.compressMemBlock.compressedByte / pageSize + 1;
     			for (int i = 0 ; i < physPages ; i++) {
@@ -828,6 +1411,7 @@ public class UserProcess {
     				}
     			}
     		}
+    		// otherwise the page is not loaded yet, or was dropped, and holds no frame
     	}
     	List<Integer> freePhysPages = new ArrayList<>();
     	for (int i = 0 ; i < numPhysPages ; i++) {
@@ -844,35 +1428,67 @@ public class UserProcess {
     	return sb.toString();
     }
     
-    public static String printPageTable(TranslationEntry[] pageTable) {
+    public static String printPageTable(PackedPageTable pageTable) {
     	StringBuffer sb = new StringBuffer();
     	sb.append("==========\n");
-    	for (TranslationEntry entry : pageTable) {
-    		if (entry != null)
-    			sb.append(entry + "\n");
-    	}
+    	sb.append(pageTable);
     	sb.append("==========\n"); 
     	return sb.toString();
     }
     
     private int getTotalPages() {
-    	int total = 0;
-    	for (TranslationEntry entry : pageTable) {
-    		if (entry != null) {
-    			total++;
-    		}
-    	}
-    	return total;
+    	return numAllocatedPages;
+    }
+
+    /**
+     * Record in the kernel's inverted page table that <i>vpn</i> is resident in frame <i>ppn</i>.
+     */
+    protected void mapPage(int vpn, int ppn) {
+        UserKernel.invertedPageTable.insert(pid, vpn, ppn);
+    }
+
+    /**
+     * Remove <i>vpn</i> from the kernel's inverted page table, once it is no longer resident.
+     */
+    protected void unmapPage(int vpn) {
+        UserKernel.invertedPageTable.remove(pid, vpn);
+    }
+
+    /**
+     * Pick up to <i>victimNum</i> resident pages of this process to swap out. Walks the
+     * uncompressed frames from a random starting point and asks the inverted page table who owns
+     * each one, so the cost depends on the number of frames rather than the page table size.
+     * Frames pinned for an in-progress transfer are skipped, and so are frames shared with another
+     * process, which swapping out would not free.
+     *
+     * @return the vpns of the chosen victims.
+     */
+    private List<Integer> findVictims(int victimNum) {
+        InvertedPageTable ipt = UserKernel.invertedPageTable;
+        List<Integer> victims = new ArrayList<Integer>(victimNum);
+        int start = Lib.random(compressMemStartPage);
+
+        for (int i = 0; i < compressMemStartPage && victims.size() < victimNum; i++) {
+            int ppn = (start + i) % compressMemStartPage;
+            if (ipt.getOwnerPid(ppn) == pid && !ipt.isPinned(ppn)
+                    && memoryUsage.getReferenceCount(ppn) == 1)
+                victims.add(ipt.getOwnerVPN(ppn));
+        }
+        return victims;
     }
     
     private Boolean handlePageFault(int badVAddr) throws IOException, DataFormatException {
         // Assume program is preloaded in uncompressed memory
         int vpn = badVAddr / pageSize;
-        Lib.debug(dbgProcess, "Current page table:\n" + printPageTable(pageTable));
-        Lib.debug(dbgProcess, "Current physical mem:\n" + printPhysMemStatus());
-        Lib.debug(dbgProcess, "Current memory usage:\n" + memoryUsage);
-        Lib.debug(dbgProcess, "\n*****************************\nHandle page fault for vpn " + vpn);
-        if (pageTable == null || vpn >= pageTable.length) {
+        if (Lib.test(dbgProcess))
+            System.out.println("Current page table:\n" + printPageTable(pageTable));
+        if (Lib.test(dbgProcess))
+            System.out.println("Current physical mem:\n" + printPhysMemStatus());
+        if (Lib.test(dbgProcess))
+            System.out.println("Current memory usage:\n" + memoryUsage);
+        if (Lib.test(dbgProcess))
+            System.out.println("\n*****************************\nHandle page fault for vpn " + vpn);
+        if (pageTable == null || vpn >= pageTable.getNumPages()) {
             // error
             Lib.debug(dbgProcess, "Page Table not exist or VPN out of range");
             return false;
@@ -882,7 +1498,7 @@ public class UserProcess {
         List<Integer> swapoutVPNs, swapinVPNs;
         int swapoutVPN, swapinVPN, allocatedPPN = 0;
         
-        if (pageTable[vpn] == null && vpn == programPages) {
+        if (!pageTable.isAllocated(vpn) && vpn == programPages) {
         	// reserve last stack page
         	Lib.assertNotReached(String.format("Stack overflow: try to alloc stack page %d which is the last stack page,"
         			+ " we reserve last stack page to detect stackoverflow", vpn));
@@ -897,67 +1513,66 @@ public class UserProcess {
         // 5. put compressed swap-out page in compress memory
         // 6. Initialize new allocated stack page with zero
         // 7. update page table for both swap-out page and swap-in page
-        if (pageTable[vpn] == null || (!pageTable[vpn].valid && !pageTable[vpn].compressed)) {
+        // a program page not loaded yet is read from the executable the same way, instead of
+        // being zeroed
+        if (!pageTable.isAllocated(vpn) || (!pageTable.isValid(vpn) && !pageTable.isCompressed(vpn))) {
             // create page table entry
-            pageTable[vpn] = new TranslationEntry(vpn, -1, false, false, false, false, false, -1,
+            if (!pageTable.isAllocated(vpn))
+                numAllocatedPages++;
+            boolean readOnly = vpn < programPages && getSection(vpn).isReadOnly();
+            pageTable.set(vpn, -1, false, readOnly, false, false, false, -1,
                     null);
-            byte[] zero = new byte[pageSize];
-            Arrays.fill(zero, (byte) 0);
+
+            // text some other process has read already is just mapped
+            if (readOnly) {
+                int cachedPPN = textPageCache.lookup(executableName, executableVersion, vpn, this);
+                if (cachedPPN != -1) {
+                    pageTable.set(vpn, cachedPPN, true, true, false, false, false, -1, null);
+                    Machine.getStats().totalMemPages = getTotalPages();
+                    return true;
+                }
+            }
 
             // check uncompressed memory first, call mem allocation. if there is unused page,
-            // return ppn.
+            // return ppn. If there is none, evict cached text this process is not using, or drop
+            // a clean program page if one comes to hand, and if this process has nothing to swap
+            // out, take a frame from another process.
             allocatedPPN = memoryUsage.allocatePageInUncomp();
+            if (allocatedPPN == -1 && textPageCache.evict(1, this) > 0)
+                allocatedPPN = memoryUsage.allocatePageInUncomp();
+            if (allocatedPPN == -1 && dropCleanPages(compressedBlockPages) > 0)
+                allocatedPPN = memoryUsage.allocatePageInUncomp();
+            if (allocatedPPN == -1 && findVictims(1).isEmpty()) {
+                reclaimFrames(memoryUsage, 1);
+                allocatedPPN = memoryUsage.allocatePageInUncomp();
+            }
 
             // There is free page
             if (allocatedPPN != -1) {
-                pageTable[vpn].ppn = allocatedPPN;
-                pageTable[vpn].valid = true;
-                // initialize stack page with all 0
-                writeVirtualMemory(Processor.makeAddress(vpn, 0), zero, 0, pageSize);
-                // update page table
-                pageTable[vpn].readOnly = false;
-                pageTable[vpn].dirty = false; // true or false ?
-                pageTable[vpn].used = false; // true or false ?
-                pageTable[vpn].compressed = false;
-                pageTable[vpn].compressOffset = -1;
-                pageTable[vpn].compressMemBlock = null;
-                memoryUsage.setPage(allocatedPPN);
+                loadNewPage(vpn, allocatedPPN, readOnly);
+                cacheText(vpn);
                 Machine.getStats().totalMemPages = getTotalPages();
                 return true;
             }
 
             // If there is no free page in uncompressed memory, pageFaultHelper deals with swap-out
             swapoutCMB = pageFaultHelper(compressedBlockPages);
+            if (swapoutCMB == null)
+                return false;
             swapoutVPNs = swapoutCMB.vpnList;
-            // assign the first swap-out page to stack page
-            writeVirtualMemory(Processor.makeAddress(swapoutVPNs.get(0), 0), zero, 0, pageSize);
-            // update page status
-            memoryUsage.setPage(pageTable[swapoutVPNs.get(0)].ppn);
-            // update stack page entry in page table
-            pageTable[vpn].ppn = pageTable[swapoutVPNs.get(0)].ppn;
-            pageTable[vpn].valid = true;
-            pageTable[vpn].readOnly = false;
-            pageTable[vpn].dirty = true;
-            pageTable[vpn].used = true;
-            pageTable[vpn].compressed = false;
-            pageTable[vpn].compressOffset = -1;
-            pageTable[vpn].compressMemBlock = null;
+            // the first swap-out page's frame goes to the faulting page
+            allocatedPPN = pageTable.getPPN(swapoutVPNs.get(0));
 
             // update page table entries for swap-out pages
             for (int offsetInBlock = 0; offsetInBlock < swapoutVPNs.size(); offsetInBlock++) {
                 swapoutVPN = swapoutVPNs.get(offsetInBlock);
+                unmapPage(swapoutVPN);
                 // update page table entry for swap-out page
-                TranslationEntry swapoutEntry = pageTable[swapoutVPN];
-                // pageTable[swapoutVPN] = new TranslationEntry(swapoutVPN, -1, false,
-                // swapoutEntry.readOnly, false, false, true, offsetInBlock, swapoutCMB);
-                swapoutEntry.ppn = -1;
-                swapoutEntry.valid = false;
-                swapoutEntry.dirty = false;
-                swapoutEntry.used = false;
-                swapoutEntry.compressed = true;
-                swapoutEntry.compressOffset = offsetInBlock;
-                swapoutEntry.compressMemBlock = swapoutCMB;
+                pageTable.setSwappedOut(swapoutVPN, offsetInBlock, swapoutCMB);
             }
+
+            loadNewPage(vpn, allocatedPPN, readOnly);
+            cacheText(vpn);
         }
 
         // if page fault in compression section
@@ -971,9 +1586,9 @@ public class UserProcess {
         // throw error, if found, put compressed byte in allocated place and update page status
         // 7. Put decompressed pages into uncompressed memory, update page status
         // 8. update page table for all pages
-        if (pageTable[vpn].compressed) {
+        if (pageTable.isCompressed(vpn)) {
             // how much pages needed after decompression
-            swapinCMB = pageTable[vpn].compressMemBlock;
+            swapinCMB = pageTable.getCompressMemBlock(vpn);
             swapinVPNs = swapinCMB.vpnList;
             // Create a decompress-buffer
             byte[] decompressBuf = new byte[swapinCMB.compressedByte];
@@ -989,6 +1604,9 @@ public class UserProcess {
             for (int i = 0; i < compressBlockPages; i++) {
                 memoryUsage.releasePage(swapinCMB.startPPN + i);
             }
+            // the block is gone; making room below must not see it as live
+            for (Integer v : swapinVPNs)
+                pageTable.setCompressMemBlock(v, null);
 
             // decompression
             byte[] decompressedData = MemoryCompression.decompress(decompressBuf);
@@ -998,8 +1616,21 @@ public class UserProcess {
             int pageToAllocate = (swapinCMB.unCompressedByte / pageSize)
                     + (swapinCMB.unCompressedByte % pageSize == 0 ? 0 : 1);
 
-            // First try to find enough phys pages
+            // First try to find enough phys pages, evicting cached text this process is not using
+            // and dropping clean program pages to make room
             List<Integer> findFreePages = memoryUsage.findMultiPagesUncomp(pageToAllocate);
+            if (findFreePages.size() < pageToAllocate
+                    && textPageCache.evict(pageToAllocate - findFreePages.size(), this) > 0)
+                findFreePages = memoryUsage.findMultiPagesUncomp(pageToAllocate);
+            if (findFreePages.size() < pageToAllocate
+                    && dropCleanPages(pageToAllocate - findFreePages.size()) > 0)
+                findFreePages = memoryUsage.findMultiPagesUncomp(pageToAllocate);
+            if (findFreePages.size() < pageToAllocate
+                    && findFreePages.size() + findVictims(pageToAllocate).size() < pageToAllocate) {
+                // other processes hold the rest of memory; take some of theirs
+                reclaimFrames(memoryUsage, pageToAllocate);
+                findFreePages = memoryUsage.findMultiPagesUncomp(pageToAllocate);
+            }
             if (findFreePages.size() == pageToAllocate) {
             	// find enough
             	swapinIntoFreePhysMem(findFreePages, swapinVPNs, decompressedData, 0);            	
@@ -1012,7 +1643,7 @@ public class UserProcess {
             	// not enough, need swap
             	// find victim
             	// optimization: try to always compress "compressedBlockPages" number of pages each time
-                List<Integer> findVictims = Machine.processor().findVictim(pageToAllocate);
+                List<Integer> findVictims = findVictims(pageToAllocate);
                 
                 if (findVictims.size() < pageToAllocate) {
                 	// have to use some free pyhs mem and swap all victims
@@ -1023,14 +1654,16 @@ public class UserProcess {
                 	List<Integer> swapinFreePagesVPNs = swapinVPNs.subList(findVictims.size(), swapinVPNs.size());
                 	
                 	// swap into victims first
-                	swapinIntoVictims(swapinVictimsVPNs, 0, decompressedData);
+                	if (!swapinIntoVictims(swapinVictimsVPNs, 0, decompressedData))
+                	    return false;
                 	
                 	// use free mem
                 	swapinIntoFreePhysMem(freePages, swapinFreePagesVPNs, decompressedData, swapinVictimsVPNs.size());
                 	
                 } else {
                 	// just swap all victims
-                	swapinIntoVictims(swapinVPNs, 0, decompressedData);
+                	if (!swapinIntoVictims(swapinVPNs, 0, decompressedData))
+                	    return false;
                 }
             }
             // verify decompressed memory content
@@ -1056,28 +1689,24 @@ public class UserProcess {
     private void swapinIntoFreePhysMem(List<Integer> freePages, List<Integer> swapinVPNs,
     		byte[] decompressedData, int offsetInBlock) {
     	Lib.assertTrue(freePages.size() == swapinVPNs.size());
-    	Lib.debug(dbgProcess, String.format("swap into free mem: %s vpns: %s offsetInBlock: %d", freePages,
-    			swapinVPNs, offsetInBlock));
+    	if (Lib.test(dbgProcess))
+    	    System.out.println(String.format("swap into free mem: %s vpns: %s offsetInBlock: %d",
+    	            freePages, swapinVPNs, offsetInBlock));
         // initialize page table entries first
         for (int i = 0; i < freePages.size(); i++) {
-            pageTable[swapinVPNs.get(i)].ppn = freePages.get(i);
-            pageTable[swapinVPNs.get(i)].valid = true;
-            pageTable[swapinVPNs.get(i)].readOnly = false;
-            pageTable[swapinVPNs.get(i)].used = false;
-            pageTable[swapinVPNs.get(i)].dirty = false;
-            pageTable[swapinVPNs.get(i)].compressed = false;
-            pageTable[swapinVPNs.get(i)].compressOffset = -1;
-            pageTable[swapinVPNs.get(i)].compressMemBlock = null;
-
-            writeVirtualMemory(Processor.makeAddress(swapinVPNs.get(i), 0),
-                    decompressedData, offsetInBlock * pageSize, pageSize);
+            pageTable.set(swapinVPNs.get(i), freePages.get(i), true,
+                    pageTable.isReadOnly(swapinVPNs.get(i)), false, false,
+                    false, -1, null);
+            mapPage(swapinVPNs.get(i), freePages.get(i));
+
+            fillFrame(freePages.get(i), decompressedData, offsetInBlock * pageSize);
             offsetInBlock++;
             // update page usage
             memoryUsage.setPage(freePages.get(i));
         }
     }
     
-    private void swapinIntoVictims(List<Integer> swapinVPNs, int offsetInBlock,
+    private boolean swapinIntoVictims(List<Integer> swapinVPNs, int offsetInBlock,
     		byte[] decompressedData) throws IOException {
     	
     	CompressMemBlock swapoutCMB;
@@ -1085,65 +1714,68 @@ public class UserProcess {
         int swapoutVPN, swapinVPN, allocatedPPN = 0;
 
         swapoutCMB = pageFaultHelper(swapinVPNs.size());
+        if (swapoutCMB == null)
+            return false;
         swapoutVPNs = swapoutCMB.vpnList;
-        Lib.debug(dbgProcess, String.format("swap vpns: %s into victims: %s offsetInBlock: %d", swapinVPNs,swapoutCMB.vpnList, offsetInBlock));
+        if (Lib.test(dbgProcess))
+            System.out.println(String.format("swap vpns: %s into victims: %s offsetInBlock: %d",
+                    swapinVPNs, swapoutVPNs, offsetInBlock));
         
         // write swap-in data to uncompressed memory
         for (int i = 0; i < swapoutVPNs.size(); i++) {
             swapoutVPN = swapoutVPNs.get(i);
             swapinVPN = swapinVPNs.get(i);
-            allocatedPPN = pageTable[swapoutVPN].ppn;
+            allocatedPPN = pageTable.getPPN(swapoutVPN);
 
             // write one swap-in page to uncompressed memory
-            writeVirtualMemory(Processor.makeAddress(swapoutVPN, 0),
-                    decompressedData, offsetInBlock * pageSize, pageSize);
+            fillFrame(allocatedPPN, decompressedData, offsetInBlock * pageSize);
             // update page status
-            memoryUsage.setPage(pageTable[swapoutVPN].ppn);
+            memoryUsage.setPage(pageTable.getPPN(swapoutVPN));
 
             // update page table entry for swap-out page
-            TranslationEntry swapoutEntry = pageTable[swapoutVPN];
-            // pageTable[swapoutVPN] = new TranslationEntry(swapoutVPN, -1, false,
-            // swapoutEntry.readOnly, false, false, true, offsetInBlock, swapoutCMB);
-            swapoutEntry.ppn = -1;
-            swapoutEntry.valid = false;
-            swapoutEntry.dirty = false;
-            swapoutEntry.used = false;
-            swapoutEntry.compressed = true;
-            swapoutEntry.compressOffset = i;
-            swapoutEntry.compressMemBlock = swapoutCMB;
+            pageTable.setSwappedOut(swapoutVPN, i, swapoutCMB);
+            unmapPage(swapoutVPN);
 
             // update page table entry for swap-in page
-            TranslationEntry swapinEntry = pageTable[swapinVPN];
-            swapinEntry.ppn = allocatedPPN;
-            swapinEntry.valid = true;
-            swapinEntry.dirty = false;
-            swapinEntry.used = true;
-            swapinEntry.compressed = false;
-            swapinEntry.compressOffset = -1;
-            swapinEntry.compressMemBlock = null;
+            pageTable.set(swapinVPN, allocatedPPN, true, pageTable.isReadOnly(swapinVPN), true,
+                    false, false, -1, null);
+            mapPage(swapinVPN, allocatedPPN);
             
             offsetInBlock++;
         }
+        return true;
     }
 
     private Map<Integer, byte[]> pageContentBeforeCompression = new HashMap<>();
     
     // lookup swap-out pages in uncompressed memory
     // load swap-out pages to compress buffer and do compression
-    // allocate swap-out pages in compressed memory, if not find place, throw error.
+    // allocate swap-out pages in compressed memory. If this process has nothing to swap out, or
+    // there is no place for it, returns null.
     public CompressMemBlock pageFaultHelper(int pagesToAllocate) throws IOException {
         // call Mem allocate function, find pages to swap out, return a list of vpns
-        List<Integer> swapoutVPNs = Machine.processor().findVictim(pagesToAllocate);
+        List<Integer> swapoutVPNs = findVictims(pagesToAllocate);
         // Lib.assertTrue(pagesToAllocate == swapoutVPNs.size(), "Cannot find " + swapoutVPNs + " virtual pages to swap out");
-        Lib.debug(dbgProcess, "pagesToAllocate: " +pagesToAllocate+" Swap out these VPNs: " + swapoutVPNs.toString());
-        // if find allocated pages, swap-out
-        byte[] compressBuf = new byte[pagesToAllocate * pageSize];
+        if (Lib.test(dbgProcess))
+            System.out.println("pagesToAllocate: " +pagesToAllocate+" Swap out these VPNs: " + swapoutVPNs.toString());
+        if (swapoutVPNs.isEmpty()) {
+            Lib.debug(dbgProcess, "No pages to swap out");
+            return null;
+        }
+        // a copy-on-write page whose sharers are gone comes back as an ordinary writable page
+        for (Integer v : swapoutVPNs) {
+            if (pageTable.isCopyOnWrite(v)) {
+                pageTable.setCopyOnWrite(v, false);
+                pageTable.setReadOnly(v, false);
+            }
+        }
+        // if find allocated pages, swap-out. Other processes may hold the rest of memory, so
+        // there can be fewer victims than asked for; the block holds only those found.
+        byte[] compressBuf = new byte[swapoutVPNs.size() * pageSize];
         int offset = 0;
         for (Integer v : swapoutVPNs) {
             readVirtualMemory(Processor.makeAddress(v, 0), compressBuf, offset, pageSize);
             offset += pageSize;
-            // update page status
-            memoryUsage.releasePage(pageTable[v].ppn);
         }
         // Save page content for verification
         for (Integer vpn: swapoutVPNs) {
@@ -1160,10 +1792,19 @@ public class UserProcess {
                 + ((swapOutData.length % pageSize) == 0 ? 0 : 1);
         int compressedPPN = memoryUsage.allocateCtnPageInComp(compressedPagesToAllocate);
         if (compressedPPN == -1) {
-        	Lib.assertNotReached("Not Enough Compressed Memory");
+            // there may be enough free frames, just not in one run
+            compactCompressedMemory(memoryUsage);
+            compressedPPN = memoryUsage.allocateCtnPageInComp(compressedPagesToAllocate);
+        }
+        if (compressedPPN == -1) {
+            Lib.debug(dbgProcess, "Not Enough Compressed Memory");
             return null;
         }
 
+        // update page status
+        for (Integer v : swapoutVPNs)
+            memoryUsage.releasePage(pageTable.getPPN(v));
+
         CompressMemBlock swapoutCMB = new CompressMemBlock();
         swapoutCMB.startPPN = compressedPPN;
         swapoutCMB.compressedByte = swapOutData.length;
@@ -1172,11 +1813,12 @@ public class UserProcess {
         // write swap-out data to compressed memory
         writeCompressMemory(swapoutCMB.startPPN, swapOutData, 0, swapOutData.length);
 
-        Lib.debug(dbgProcess, "Store compressed page in ppn: ");
+        if (Lib.test(dbgProcess))
+            System.out.println("Store compressed page in ppn: " + compressedPPN + " - "
+                    + (compressedPPN + compressedPagesToAllocate - 1));
         // update page status
         for (int i = 0; i < compressedPagesToAllocate; i++) {
             memoryUsage.setPage(compressedPPN + i);
-            Lib.debug(dbgProcess, "" + (compressedPPN + i));
         }
         
         return swapoutCMB;
@@ -1186,11 +1828,34 @@ public class UserProcess {
     public static final int STDOUT_FILENO = 1;
     public static final int STDERR_FILENO = 2;
 
+    /** This process's identifier, also its key in the inverted page table. */
+    protected int pid;
+
+    private static int nextPid = 0;
+
+    /** The first process to run, the only one allowed to halt the machine. */
+    private static UserProcess rootProcess = null;
+    /** Processes that have started and not yet exited, by process ID. */
+    private static Map<Integer, UserProcess> runningProcesses = new HashMap<Integer, UserProcess>();
+
+    /** Children of this process that have not been joined yet, by process ID. */
+    private Map<Integer, UserProcess> children = new HashMap<Integer, UserProcess>();
+    /** Released once when this process exits. */
+    private Semaphore exited = new Semaphore(0);
+    private int exitStatus;
+    private boolean exitedNormally;
+
     /** The program being run by this process. */
     protected Coff coff;
+    /** The name of the file <tt>coff</tt> was loaded from, which a forked child reopens. */
+    private String executableName;
+    /** The version of the executable loaded, under which its text is cached. */
+    private int executableVersion;
+    /** The registers a forked child starts with, until it first runs. */
+    private int[] forkRegisters = null;
 
     /** This process's page table. */
-    protected TranslationEntry[] pageTable;
+    protected PackedPageTable pageTable;
     /** The number of contiguous pages occupied by the program. */
     protected int numPages;
 
@@ -1217,9 +1882,6 @@ public class UserProcess {
     // number of pages to compressed together
     private static final int compressedBlockPages = Config.getInteger("Processor.compressedBlockPages");
 
-    // leave some empty pages in both uncompressed and compressed memory for initialization
-    private static final int numReservedPages = 4;
-
     // starting physical page of compressed memory
     public static final int compressMemStartPage = numPhysPages / (memoryDivideRatio + 1);
 
@@ -1227,4 +1889,20 @@ public class UserProcess {
     public static final int pagesCompressMem = numPhysPages - compressMemStartPage;
 
     private MemoryUsage memoryUsage;
+    private TextPageCache textPageCache;
+
+    /** This process's open files, indexed by file descriptor. */
+    private FileDescriptor[] fileTable = new FileDescriptor[maxOpenFiles];
+
+    private static final int maxOpenFiles = 16;
+    private static final int maxFileNameLength = 256;
+    private static final int maxArgLength = 256;
+    private static final int fileBufferSize =
+            Config.getInteger("UserProcess.fileBufferSize", 4 * Processor.pageSize);
+
+    /** Reused by the read and write system calls. */
+    private SegmentList ioSegments = new SegmentList();
+
+    /** Number of non-null entries in the page table. */
+    private int numAllocatedPages = 0;
 }